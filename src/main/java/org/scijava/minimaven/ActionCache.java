@@ -0,0 +1,277 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Caches the compiled classes of projects.
+ * <p>
+ * The cache is content-addressed: the key is a hash of everything that affects
+ * the compiler's output, i.e. the sources, the resources, the compiler
+ * settings and the interfaces of the dependencies. When switching back to a
+ * branch that was built before, the classes are restored from the cache rather
+ * than compiled again.
+ * </p>
+ * <p>
+ * Each entry is a .zip file; the least-recently used entries are evicted when
+ * the cache grows beyond its maximal size.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class ActionCache {
+
+	protected final File directory;
+	protected final long maxSize;
+
+	public ActionCache(final File directory, final long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Computes the key of a build action.
+	 *
+	 * @param values the settings affecting the output, sorted by name
+	 * @param files the input files or directories, sorted by name
+	 * @return the key
+	 */
+	public static String computeKey(final Map<String, String> values,
+		final Map<String, File> files) throws IOException
+	{
+		final MessageDigest digest = getDigest();
+		for (final Map.Entry<String, String> entry : values.entrySet()) {
+			update(digest, entry.getKey() + "=" + entry.getValue() + "\n");
+		}
+		final byte[] buffer = new byte[65536];
+		for (final Map.Entry<String, File> entry : files.entrySet()) {
+			addRecursively(digest, entry.getKey(), entry.getValue(), buffer);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Replaces the contents of a directory with a cached output.
+	 *
+	 * @param key the key of the build action
+	 * @param target the output directory
+	 * @return whether the cache contained the output
+	 */
+	public boolean restore(final String key, final File target)
+		throws IOException
+	{
+		final File file = new File(directory, key + ".zip");
+		if (!file.exists()) return false;
+		if (target.isDirectory()) BuildEnvironment.rmRF(target);
+		target.mkdirs();
+		final byte[] buffer = new byte[65536];
+		final ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+		try {
+			for (;;) {
+				final ZipEntry entry = in.getNextEntry();
+				if (entry == null) break;
+				final String name = entry.getName();
+				if (name.startsWith("/") || name.contains("..")) continue;
+				final File output = new File(target, name);
+				if (entry.isDirectory()) output.mkdirs();
+				else {
+					output.getParentFile().mkdirs();
+					// the zip stream must stay open for the next entry
+					final OutputStream out = new FileOutputStream(output);
+					try {
+						for (;;) {
+							final int count = in.read(buffer);
+							if (count < 0) break;
+							out.write(buffer, 0, count);
+						}
+					}
+					finally {
+						out.close();
+					}
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		// mark as recently used
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Stores the output of a build action.
+	 *
+	 * @param key the key of the build action
+	 * @param target the output directory
+	 */
+	public void store(final String key, final File target) throws IOException {
+		directory.mkdirs();
+		final File file = new File(directory, key + ".zip");
+		// other processes may store the same entry concurrently
+		final File tmp = File.createTempFile(key + ".zip.", ".tmp", directory);
+		final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+		try {
+			addToZip(out, target, "");
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not write " + file);
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the least-recently used entries until the cache fits into its
+	 * maximal size.
+	 * <p>
+	 * Temporary files are left alone: they are entries still being written.
+	 * </p>
+	 */
+	protected void evict() {
+		final File[] list = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return !name.endsWith(".tmp");
+			}
+		});
+		if (list == null) return;
+		long total = 0;
+		for (final File file : list) {
+			total += file.length();
+		}
+		if (total <= maxSize) return;
+		Arrays.sort(list, new Comparator<File>() {
+
+			@Override
+			public int compare(final File a, final File b) {
+				final long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+		for (final File file : list) {
+			if (total <= maxSize) break;
+			final long length = file.length();
+			if (file.delete()) total -= length;
+		}
+	}
+
+	private static void addToZip(final ZipOutputStream out,
+		final File directory, final String prefix) throws IOException
+	{
+		final File[] list = directory.listFiles();
+		if (list == null) return;
+		Arrays.sort(list);
+		for (final File file : list) {
+			if (file.isDirectory()) {
+				addToZip(out, file, prefix + file.getName() + "/");
+			}
+			else if (file.isFile()) {
+				out.putNextEntry(new ZipEntry(prefix + file.getName()));
+				BuildEnvironment.copy(new FileInputStream(file), out, false);
+				out.closeEntry();
+			}
+		}
+	}
+
+	private static void addRecursively(final MessageDigest digest,
+		final String name, final File file, final byte[] buffer)
+		throws IOException
+	{
+		final File[] list = file.listFiles();
+		if (list != null) {
+			Arrays.sort(list);
+			for (final File child : list) {
+				addRecursively(digest, name + "/" + child.getName(), child, buffer);
+			}
+		}
+		else if (file.isFile()) {
+			update(digest, name + " " + file.length() + "\n");
+			final InputStream in = new FileInputStream(file);
+			try {
+				for (;;) {
+					final int count = in.read(buffer);
+					if (count < 0) break;
+					digest.update(buffer, 0, count);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void update(final MessageDigest digest, final String string)
+		throws UnsupportedEncodingException
+	{
+		digest.update(string.getBytes("UTF-8"));
+	}
+
+	private static String toHex(final byte[] bytes) {
+		final StringBuilder builder = new StringBuilder();
+		for (final byte b : bytes) {
+			builder.append(String.format("%02x", b & 0xff));
+		}
+		return builder.toString();
+	}
+}
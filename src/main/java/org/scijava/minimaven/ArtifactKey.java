@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The canonical identity of an artifact: its groupId, artifactId and
+ * classifier.
+ * <p>
+ * Keys are interned, so that there is only one instance per artifact, and
+ * their hash code is computed only once. The group and artifact IDs are
+ * interned, too, to avoid keeping many copies of the same strings around.
+ * </p>
+ * <p>
+ * The pools only hold weak references, so that a long-running daemon does not
+ * accumulate the keys of every project it ever parsed.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public final class ArtifactKey {
+
+	private final static Interner<String> strings = new Interner<String>();
+	private final static Interner<ArtifactKey> keys =
+		new Interner<ArtifactKey>();
+
+	private final String groupId, artifactId, classifier;
+	private final int hashCode;
+	private String string;
+
+	private ArtifactKey(final String groupId, final String artifactId,
+		final String classifier)
+	{
+		this.groupId = groupId;
+		this.artifactId = artifactId;
+		this.classifier = classifier;
+		hashCode = (hashCode(groupId) * 31 + hashCode(artifactId)) * 31 +
+			hashCode(classifier);
+	}
+
+	/**
+	 * Returns the canonical key of an artifact.
+	 *
+	 * @param groupId the groupId of the artifact
+	 * @param artifactId the artifactId of the artifact
+	 * @param classifier the classifier, or null
+	 * @return the key
+	 */
+	public static ArtifactKey get(final String groupId, final String artifactId,
+		final String classifier)
+	{
+		return keys.intern(new ArtifactKey(intern(groupId), intern(artifactId),
+			intern(classifier)));
+	}
+
+	/**
+	 * Returns the canonical instance of a string.
+	 *
+	 * @param string the string, or null
+	 * @return an equal string, possibly shared with other users
+	 */
+	public static String intern(final String string) {
+		if (string == null) return null;
+		return strings.intern(string);
+	}
+
+	/**
+	 * Tests whether this key identifies the given artifact.
+	 */
+	public boolean matches(final String groupId, final String artifactId,
+		final String classifier)
+	{
+		return equals(this.groupId, groupId) &&
+			equals(this.artifactId, artifactId) &&
+			equals(this.classifier, classifier);
+	}
+
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public String getArtifactId() {
+		return artifactId;
+	}
+
+	public String getClassifier() {
+		return classifier;
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (this == other) return true;
+		if (!(other instanceof ArtifactKey)) return false;
+		final ArtifactKey key = (ArtifactKey) other;
+		return hashCode == key.hashCode && matches(key.groupId, key.artifactId,
+			key.classifier);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	/**
+	 * Returns the key in the form <i>groupId&gt;artifactId[&gt;classifier]</i>.
+	 */
+	@Override
+	public String toString() {
+		if (string == null) {
+			string = groupId + ">" + artifactId + (classifier == null ? "" : ">" +
+				classifier);
+		}
+		return string;
+	}
+
+	private static int hashCode(final String string) {
+		return string == null ? 0 : string.hashCode();
+	}
+
+	private static boolean equals(final String string1, final String string2) {
+		return string1 == null ? string2 == null : string1.equals(string2);
+	}
+
+	/**
+	 * Canonicalizes instances without keeping unused ones alive.
+	 */
+	private static class Interner<T> {
+
+		private final Map<T, WeakReference<T>> map =
+			new WeakHashMap<T, WeakReference<T>>();
+
+		private synchronized T intern(final T object) {
+			final WeakReference<T> reference = map.get(object);
+			if (reference != null) {
+				final T existing = reference.get();
+				if (existing != null) return existing;
+			}
+			map.put(object, new WeakReference<T>(object));
+			return object;
+		}
+	}
+}
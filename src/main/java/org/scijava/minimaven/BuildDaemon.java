@@ -0,0 +1,386 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps build environments alive between MiniMaven invocations.
+ * <p>
+ * Starting a new JVM for every build means that all POMs need to be parsed
+ * again, and that the Java compiler has to be loaded (and warmed up) again. The
+ * daemon listens on a loopback socket instead, and reuses the parsed projects
+ * for as long as none of the POM files changed.
+ * </p>
+ * <p>
+ * Requests are handled one at a time, as the options of a request are passed
+ * via the system properties.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class BuildDaemon {
+
+	protected final static File stateFile = new File(BuildEnvironment.mavenRepository
+		.getParentFile(), "minimaven-daemon");
+
+	private final PrintStream log;
+	private final ServerSocket server;
+	private final String secret;
+	private final Map<String, CachedEnvironment> environments =
+		new HashMap<String, CachedEnvironment>();
+	// how long to wait for a client to send its request, in milliseconds
+	protected int requestTimeout = 10000;
+
+	public BuildDaemon(final PrintStream log) throws IOException {
+		this.log = log;
+		server = new ServerSocket(0, 50, InetAddress.getByName(null));
+		final byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		final StringBuilder builder = new StringBuilder();
+		for (final byte b : random) {
+			builder.append(String.format("%02x", b & 0xff));
+		}
+		secret = builder.toString();
+	}
+
+	/**
+	 * Accepts build requests until the daemon is stopped.
+	 *
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		serve(stateFile);
+	}
+
+	/**
+	 * Accepts build requests until the daemon is {@link #close() closed}.
+	 *
+	 * @param stateFile where to record the port and the secret
+	 * @throws IOException
+	 */
+	public void serve(final File stateFile) throws IOException {
+		createPrivateFile(stateFile);
+		final FileWriter writer = new FileWriter(stateFile);
+		writer.write(server.getLocalPort() + "\n" + secret + "\n");
+		writer.close();
+		stateFile.deleteOnExit();
+		log.println("MiniMaven daemon listening on port " + server.getLocalPort());
+		for (;;) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			}
+			catch (final IOException e) {
+				if (server.isClosed()) return;
+				throw e;
+			}
+			try {
+				// requests are handled one at a time: do not wait forever
+				socket.setSoTimeout(requestTimeout);
+				handle(socket);
+			}
+			catch (final IOException e) {
+				e.printStackTrace(log);
+			}
+			finally {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting requests.
+	 */
+	public void close() throws IOException {
+		server.close();
+	}
+
+	/**
+	 * Creates an empty file that only the owner can read or write.
+	 * <p>
+	 * The permissions are set before anything is written, so that other users
+	 * cannot read the secret in the meantime.
+	 * </p>
+	 */
+	private static void createPrivateFile(final File file) throws IOException {
+		file.getParentFile().mkdirs();
+		final Path path = file.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rw-------")));
+		}
+		catch (final UnsupportedOperationException e) {
+			// not a POSIX file system
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+	}
+
+	private void handle(final Socket socket) throws IOException {
+		final DataInputStream in = new DataInputStream(socket.getInputStream());
+		final DataOutputStream out = new DataOutputStream(socket
+			.getOutputStream());
+		// compare in constant time, so as not to leak the secret
+		if (!MessageDigest.isEqual(secret.getBytes("UTF-8"), in.readUTF()
+			.getBytes("UTF-8")))
+		{
+			return;
+		}
+		final File directory = new File(in.readUTF());
+		final String[] args = new String[in.readInt()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readUTF();
+		}
+
+		final PrintStream err = new PrintStream(new FrameOutputStream(out), true);
+		final Properties properties = (Properties) System.getProperties().clone();
+		int status;
+		try {
+			status = MiniMaven.run(args, directory, err, this);
+		}
+		catch (final Throwable t) {
+			t.printStackTrace(err);
+			status = 1;
+		}
+		finally {
+			System.setProperties(properties);
+			recordState();
+		}
+		err.flush();
+		out.writeInt(-1);
+		out.writeInt(status);
+		out.flush();
+	}
+
+	/**
+	 * Returns the build environment for a project directory.
+	 * <p>
+	 * A previously-used environment is reused unless one of the POM files it
+	 * parsed was modified, or different options were specified.
+	 * </p>
+	 *
+	 * @param directory the directory containing the root <i>pom.xml</i>
+	 * @param options the command-line options of the current request
+	 * @param err where to report errors and progress to
+	 * @return the environment
+	 */
+	protected BuildEnvironment getEnvironment(final File directory,
+		final List<String> options, final PrintStream err) throws IOException
+	{
+		final String key = directory.getCanonicalPath() + "\0" + options;
+		CachedEnvironment cached = environments.get(key);
+		if (cached != null && !cached.isUpToDate()) {
+			log.println("Discarding environment for " + directory);
+			cached = null;
+		}
+		if (cached == null) {
+			cached = new CachedEnvironment(MiniMaven.createEnvironment(err));
+			environments.put(key, cached);
+		}
+		else {
+			cached.env.setErr(err);
+			// check for new snapshot versions
+			cached.env.invalidateDependencies();
+			for (final MavenProject pom : cached.env.file2pom.values()) {
+				pom.resetBuildState();
+			}
+		}
+		return cached.env;
+	}
+
+	/**
+	 * Records the state of the POM files after a request was handled.
+	 */
+	protected void recordState() {
+		for (final CachedEnvironment cached : environments.values()) {
+			cached.recordState();
+		}
+	}
+
+	/**
+	 * Sends a request to a running daemon.
+	 *
+	 * @param args the command-line arguments
+	 * @param directory the working directory
+	 * @param err where to print the output of the daemon to
+	 * @return the exit status, or null if no daemon is running
+	 */
+	public static Integer forward(final String[] args, final File directory,
+		final PrintStream err) throws IOException
+	{
+		return forward(args, directory, err, stateFile);
+	}
+
+	/**
+	 * Sends a request to the daemon described by the given state file.
+	 *
+	 * @param args the command-line arguments
+	 * @param directory the working directory
+	 * @param err where to print the output of the daemon to
+	 * @param stateFile the file recording the port and the secret
+	 * @return the exit status, or null if no daemon is running
+	 */
+	public static Integer forward(final String[] args, final File directory,
+		final PrintStream err, final File stateFile) throws IOException
+	{
+		if (!stateFile.exists()) return null;
+		final BufferedReader reader = new BufferedReader(new FileReader(
+			stateFile));
+		final String port = reader.readLine();
+		final String secret = reader.readLine();
+		reader.close();
+		if (port == null || secret == null) return null;
+
+		final Socket socket;
+		try {
+			socket = new Socket(InetAddress.getByName(null), Integer.parseInt(port));
+		}
+		catch (final ConnectException e) {
+			return null;
+		}
+		catch (final NumberFormatException e) {
+			return null;
+		}
+		try {
+			final DataOutputStream out = new DataOutputStream(socket
+				.getOutputStream());
+			out.writeUTF(secret);
+			out.writeUTF(directory.getAbsolutePath());
+			out.writeInt(args.length);
+			for (final String arg : args) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+
+			final DataInputStream in = new DataInputStream(socket.getInputStream());
+			final byte[] buffer = new byte[65536];
+			for (;;) {
+				final int length = in.readInt();
+				if (length < 0) break;
+				for (int offset = 0; offset < length;) {
+					final int count = Math.min(length - offset, buffer.length);
+					in.readFully(buffer, 0, count);
+					err.write(buffer, 0, count);
+					offset += count;
+				}
+			}
+			err.flush();
+			return in.readInt();
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	private static class CachedEnvironment {
+
+		private final BuildEnvironment env;
+		private final Map<File, Long> stamps = new HashMap<File, Long>();
+
+		private CachedEnvironment(final BuildEnvironment env) {
+			this.env = env;
+		}
+
+		private boolean isUpToDate() {
+			if (stamps.isEmpty()) return false;
+			for (final Map.Entry<File, Long> entry : stamps.entrySet()) {
+				if (entry.getKey().lastModified() != entry.getValue().longValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void recordState() {
+			stamps.clear();
+			for (final File file : env.file2pom.keySet()) {
+				stamps.put(file, file.lastModified());
+			}
+		}
+	}
+
+	/**
+	 * Sends the output of a build to the client in length-prefixed chunks.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+
+		private final DataOutputStream out;
+
+		private FrameOutputStream(final DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+			throws IOException
+		{
+			if (len == 0) return;
+			out.writeInt(len);
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+	}
+}
@@ -32,24 +32,36 @@ package org.scijava.minimaven;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.net.HttpURLConnection;
+import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -80,12 +92,49 @@ public class BuildEnvironment {
 	// by default, check once per 24h for new snapshot versions
 	protected int updateInterval = 24 * 60;
 
+	// compare checksums instead of modification times
+	protected boolean contentHashes;
+
+	// by default, build one project at a time
+	protected int threads = 1;
+
+	// how to compress .jar files, and how many threads to use for that (in
+	// total, no matter how many projects are built in parallel)
+	protected int jarCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+	protected int jarThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService jarExecutor;
+	protected boolean incrementalJars = true;
+
+	// whether to hard-link artifacts from the local repository when installing
+	protected boolean hardLinks;
+
 	protected PrintStream err;
 	protected JavaCompiler javac;
-	protected Map<String, MavenProject> localPOMCache =
-		new HashMap<String, MavenProject>();
+	protected DownloadQueue downloads;
+	protected Transport transport;
+	protected int downloadRetries;
+	protected POMCache pomCache;
+	protected ActionCache actionCache;
+	protected LockFile lockFile;
+	protected MissingArtifacts missingArtifacts;
+	// the repositories the artifacts were downloaded from
+	protected Map<ArtifactKey, String> artifactRepositories =
+		new ConcurrentHashMap<ArtifactKey, String>();
+	// the optional dependencies that could not be downloaded
+	private final Set<String> missingOptionals = Collections
+		.synchronizedSet(new HashSet<String>());
+	// the checksums of external artifacts, with their size and mtime
+	private final Map<File, String> checksums =
+		new ConcurrentHashMap<File, String>();
+	// the system properties, as of the creation of this environment
+	protected final Map<String, String> systemProperties =
+		new HashMap<String, String>();
+	protected Map<ArtifactKey, MavenProject> localPOMCache =
+		new HashMap<ArtifactKey, MavenProject>();
 	protected Map<File, MavenProject> file2pom =
 		new HashMap<File, MavenProject>();
+	// incremented whenever resolved dependencies might have become stale
+	protected int dependencyGeneration;
 	protected Stack<File> multiProjectRoots = new Stack<File>();
 	protected Set<File> excludedFromMultiProjects = new HashSet<File>();
 	protected final static File mavenRepository;
@@ -114,6 +163,44 @@ public class BuildEnvironment {
 		this.debug = debug;
 	}
 
+	public void setThreads(final int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Returns the thread pool compressing the entries of .jar files.
+	 * <p>
+	 * The pool is shared by all projects, so that building several projects in
+	 * parallel does not multiply the number of compressing threads.
+	 * </p>
+	 *
+	 * @return the thread pool, or null if the entries should be compressed by
+	 *         the thread writing the .jar file
+	 */
+	protected synchronized ExecutorService getJarExecutor() {
+		if (jarThreads < 2) return null;
+		if (jarExecutor == null) {
+			jarExecutor = Executors.newFixedThreadPool(jarThreads,
+				new ThreadFactory() {
+
+					private int counter;
+
+					@Override
+					public synchronized Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "MiniMaven-jar-" +
+							++counter);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		}
+		return jarExecutor;
+	}
+
 	public boolean getDownloadAutomatically() {
 		return downloadAutomatically && !offlineMode;
 	}
@@ -138,6 +225,10 @@ public class BuildEnvironment {
 		this.downloadAutomatically = downloadAutomatically;
 		this.verbose = verbose;
 		this.debug = debug;
+		final Properties system = System.getProperties();
+		for (final String key : system.stringPropertyNames()) {
+			systemProperties.put(key, system.getProperty(key));
+		}
 		if ("true".equalsIgnoreCase(System.getProperty("minimaven.offline")))
 			offlineMode = true;
 		if ("ignore".equalsIgnoreCase(System.getProperty("minimaven.repositories")))
@@ -155,12 +246,132 @@ public class BuildEnvironment {
 			this.err.println("Warning: ignoring invalid update interval " +
 				updateInterval);
 		}
+		missingArtifacts = new MissingArtifacts(new File(mavenRepository,
+			".minimaven-missing"), this.updateInterval * 60 * 1000l);
+		final String threads = System.getProperty("minimaven.threads");
+		if (threads != null && !threads.equals("")) try {
+			setThreads(Integer.parseInt(threads));
+			if (verbose) {
+				this.err.println("Building with " + this.threads + " threads");
+			}
+		}
+		catch (final NumberFormatException e) {
+			this.err.println("Warning: ignoring invalid thread count " + threads);
+		}
+		if ("true".equalsIgnoreCase(System.getProperty("minimaven.contenthashes")))
+			contentHashes = true;
+		if (!"false".equalsIgnoreCase(System.getProperty("minimaven.pomcache"))) {
+			pomCache = new POMCache(new File(mavenRepository.getParentFile(),
+				"minimaven-pom-cache"));
+		}
+		jarCompressionLevel = getIntegerProperty("minimaven.jar.level",
+			jarCompressionLevel);
+		if (jarCompressionLevel < -1 || jarCompressionLevel > 9) {
+			this.err.println("Warning: ignoring invalid compression level " +
+				jarCompressionLevel);
+			jarCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+		}
+		jarThreads = getIntegerProperty("minimaven.jar.threads", jarThreads);
+		if ("false".equalsIgnoreCase(System.getProperty(
+			"minimaven.jar.incremental")))
+		{
+			incrementalJars = false;
+		}
+		if ("true".equalsIgnoreCase(System.getProperty(
+			"minimaven.install.hardlinks")))
+		{
+			hardLinks = true;
+		}
+		final String actionCache = System.getProperty("minimaven.actioncache");
+		if (actionCache != null && !actionCache.equals("") && !actionCache
+			.equalsIgnoreCase("false"))
+		{
+			final File directory = actionCache.equalsIgnoreCase("true") ? new File(
+				mavenRepository.getParentFile(), "minimaven-action-cache") : new File(
+					actionCache);
+			this.actionCache = new ActionCache(directory, 1024l * 1024 *
+				getIntegerProperty("minimaven.actioncache.size", 1024));
+		}
+		final String transport = System.getProperty("minimaven.transport");
+		if (transport != null && !transport.equals("")) try {
+			this.transport = Class.forName(transport).asSubclass(Transport.class)
+				.getDeclaredConstructor().newInstance();
+		}
+		catch (final InvocationTargetException e) {
+			this.err.println("Warning: ignoring invalid transport " + transport +
+				": " + e.getCause());
+		}
+		catch (final ReflectiveOperationException e) {
+			this.err.println("Warning: ignoring invalid transport " + transport +
+				": " + e);
+		}
+		catch (final ClassCastException e) {
+			this.err.println("Warning: ignoring invalid transport " + transport +
+				": not a " + Transport.class.getName());
+		}
+		if (this.transport == null) {
+			this.transport = new HttpTransport(1000 * getIntegerProperty(
+				"minimaven.download.timeout", 60));
+		}
+		downloadRetries = getIntegerProperty("minimaven.download.retries", 2);
+		downloads = new DownloadQueue(getIntegerProperty(
+			"minimaven.download.threads", 8), getIntegerProperty(
+				"minimaven.download.connections", 4));
+	}
+
+	protected int getIntegerProperty(final String key, final int defaultValue) {
+		final String value = System.getProperty(key);
+		if (value == null || value.equals("")) return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (final NumberFormatException e) {
+			err.println("Warning: ignoring invalid value for " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Discards the memoized results of the dependency resolution.
+	 * <p>
+	 * This needs to be called whenever a POM is parsed, a project is added to
+	 * or removed from the caches, or a snapshot version is updated.
+	 * </p>
+	 */
+	public synchronized void invalidateDependencies() {
+		dependencyGeneration++;
+	}
+
+	/**
+	 * Returns the checksum of a file's contents.
+	 * <p>
+	 * The checksum is only recomputed when the size or modification time of the
+	 * file changed since it was last asked for.
+	 * </p>
+	 *
+	 * @param file the file
+	 * @return the checksum, as hex string
+	 */
+	protected String getChecksum(final File file) throws IOException {
+		final String stat = file.length() + ":" + file.lastModified() + ":";
+		final String cached = checksums.get(file);
+		if (cached != null && cached.startsWith(stat)) {
+			return cached.substring(stat.length());
+		}
+		final String result = Long.toHexString(InputManifest.checksum(file));
+		checksums.put(file, stat + result);
+		return result;
 	}
 
 	public PrintStream getErr() {
 		return err;
 	}
 
+	public void setErr(final PrintStream err) {
+		this.err = err;
+		javac.err = javac.out = err;
+	}
+
 	protected void print80(final String string) {
 		final int length = string.length();
 		err.print((verbose || length < 80 ? string : string.substring(0, 80)) +
@@ -196,11 +407,10 @@ public class BuildEnvironment {
 		}
 
 		if (!file.exists()) return null;
-		if (verbose) print80("Parsing " + file);
 		final File directory = file.getCanonicalFile().getParentFile();
-		final MavenProject pom = parse(new FileInputStream(file), directory, parent,
-			classifier);
+		final MavenProject pom = parse(file, null, directory, parent, classifier);
 		file2pom.put(file, pom);
+		invalidateDependencies();
 		return pom;
 	}
 
@@ -208,13 +418,34 @@ public class BuildEnvironment {
 		final MavenProject parent, final String classifier) throws SAXException,
 			ParserConfigurationException, IOException
 	{
-		final MavenProject pom = new MavenProject(this, directory, parent);
-		pom.coordinate.classifier = classifier;
-		if (parent != null) {
-			pom.sourceDirectory = parent.sourceDirectory;
-			pom.includeImplementationBuild = parent.includeImplementationBuild;
+		return parse(null, in, directory, parent, classifier);
+	}
+
+	private MavenProject parse(final File file, final InputStream in,
+		final File directory, final MavenProject parent, final String classifier)
+		throws SAXException, ParserConfigurationException, IOException
+	{
+		MavenProject pom = newProject(directory, parent, classifier);
+		if (file == null) pom.parse(in);
+		else if (pomCache == null || !POMCache.isCacheable(file, parent)) {
+			if (verbose) print80("Parsing " + file);
+			pom.parse(new FileInputStream(file));
+		}
+		else if (pomCache.read(file, pom)) {
+			if (debug) err.println("Read " + file + " from the cache");
+		}
+		else {
+			if (verbose) print80("Parsing " + file);
+			// the cache might have populated the project partially
+			pom = newProject(directory, parent, classifier);
+			pom.parse(new FileInputStream(file));
+			try {
+				pomCache.write(file, pom);
+			}
+			catch (final IOException e) {
+				if (verbose) err.println("Could not cache " + file + ": " + e);
+			}
 		}
-		pom.parse(in);
 		if (pom.coordinate.artifactId == null || pom.coordinate.artifactId.equals(
 			""))
 		{
@@ -242,8 +473,9 @@ public class BuildEnvironment {
 			pom.target = new File(directory, fileName);
 		}
 
-		final String key = pom.expand(pom.coordinate).getKey();
+		final ArtifactKey key = pom.expand(pom.coordinate).getArtifactKey();
 		if (!localPOMCache.containsKey(key)) localPOMCache.put(key, pom);
+		invalidateDependencies();
 
 		if (pom.isJAR() && !directory.getPath().startsWith(mavenRepository
 			.getPath()))
@@ -294,6 +526,18 @@ public class BuildEnvironment {
 		return pom;
 	}
 
+	private MavenProject newProject(final File directory,
+		final MavenProject parent, final String classifier)
+	{
+		final MavenProject pom = new MavenProject(this, directory, parent);
+		pom.coordinate.classifier = classifier;
+		if (parent != null) {
+			pom.sourceDirectory = parent.sourceDirectory;
+			pom.includeImplementationBuild = parent.includeImplementationBuild;
+		}
+		return pom;
+	}
+
 	public MavenProject fakePOM(final File target, final Coordinate dependency) {
 		final MavenProject pom = new MavenProject(this, target, null);
 		pom.directory = target.getParentFile();
@@ -315,12 +559,13 @@ public class BuildEnvironment {
 			pom.dependencies.add(new Coordinate("jfree", "jcommon", "1.0.17"));
 		}
 
-		final String key = dependency.getKey();
+		final ArtifactKey key = dependency.getArtifactKey();
 		if (debug && localPOMCache.containsKey(key)) {
 			err.println("Warning: " + target + " overrides " + localPOMCache.get(
 				key));
 		}
 		localPOMCache.put(key, pom);
+		invalidateDependencies();
 
 		return pom;
 	}
@@ -332,7 +577,7 @@ public class BuildEnvironment {
 	}
 
 	public boolean containsProject(final Coordinate coordinate) {
-		return localPOMCache.containsKey(coordinate.getKey());
+		return localPOMCache.containsKey(coordinate.getArtifactKey());
 	}
 
 	public void addMultiProjectRoot(final File root) {
@@ -375,6 +620,28 @@ public class BuildEnvironment {
 		final Coordinate dependency, final boolean quiet)
 			throws MalformedURLException, IOException, NoSuchAlgorithmException,
 			ParserConfigurationException, SAXException
+	{
+		downloadAndVerify(repositoryURL, dependency, quiet, Collections
+			.<String> emptyList());
+	}
+
+	/**
+	 * Downloads the POM and the .jar file of an artifact.
+	 * <p>
+	 * The POM is downloaded right away, the .jar file is queued. Should the .jar
+	 * file be missing from the given repository, the queued download tries the
+	 * fallback repositories in order.
+	 * </p>
+	 *
+	 * @param repositoryURL the repository to download from
+	 * @param dependency the artifact
+	 * @param quiet whether to suppress progress messages
+	 * @param fallbacks the repositories to try if the .jar file is missing
+	 */
+	protected void downloadAndVerify(final String repositoryURL,
+		final Coordinate dependency, final boolean quiet,
+		final List<String> fallbacks) throws MalformedURLException, IOException,
+		NoSuchAlgorithmException, ParserConfigurationException, SAXException
 	{
 		String path = "/" + dependency.groupId.replace('.', '/') + "/" +
 			dependency.artifactId + "/" + dependency.version + "/";
@@ -392,15 +659,15 @@ public class BuildEnvironment {
 			final String message = quiet ? null : "Checking for new snapshot of " +
 				dependency.artifactId;
 			final String metadataURL = repositoryURL + path + "maven-metadata.xml";
-			downloadAndVerify(metadataURL, directory, snapshotMetaData.getName(),
-				message);
+			downloadMetadata(metadataURL, snapshotMetaData, message);
 			final String snapshotVersion = SnapshotPOMHandler.parse(snapshotMetaData);
 			if (snapshotVersion == null) {
 				throw new IOException("No version found in " + metadataURL);
 			}
 			dependency.setSnapshotVersion(snapshotVersion);
-			if (new File(directory, dependency.getJarName()).exists() && new File(
-				directory, dependency.getPOMName()).exists())
+			invalidateDependencies();
+			if (isAvailable(new File(directory, dependency.getJarName())) &&
+				new File(directory, dependency.getPOMName()).exists())
 			{
 				return;
 			}
@@ -422,17 +689,17 @@ public class BuildEnvironment {
 			final String message = quiet ? null : "Checking for new version of " +
 				dependency.artifactId;
 			final String metadataURL = repositoryURL + path + "maven-metadata.xml";
-			downloadAndVerify(metadataURL, directory, versionMetaData.getName(),
-				message);
+			downloadMetadata(metadataURL, versionMetaData, message);
 			dependency.snapshotVersion = VersionPOMHandler.parse(versionMetaData);
+			invalidateDependencies();
 			if (dependency.snapshotVersion == null) {
 				throw new IOException("No version found in " + metadataURL);
 			}
 			path = "/" + dependency.groupId.replace('.', '/') + "/" +
 				dependency.artifactId + "/" + dependency.snapshotVersion + "/";
 			directory = new File(mavenRepository, path);
-			if (new File(directory, dependency.getJarName()).exists() && new File(
-				directory, dependency.getPOMName()).exists())
+			if (isAvailable(new File(directory, dependency.getJarName())) &&
+				new File(directory, dependency.getPOMName()).exists())
 			{
 				return;
 			}
@@ -440,19 +707,109 @@ public class BuildEnvironment {
 		final String message = quiet ? null : "Downloading " +
 			dependency.artifactId;
 		final String baseURL = repositoryURL + path;
+		// the POM needs to be verified before it is parsed: download it right away
 		downloadAndVerify(baseURL + dependency.getPOMName(), directory, null);
 		if (!isAggregatorPOM(new File(directory, dependency.getPOMName()))) {
-			downloadAndVerify(baseURL + dependency.getJarName(), directory, message);
+			final List<String> repositories = new ArrayList<String>();
+			repositories.add(repositoryURL);
+			repositories.addAll(fallbacks);
+			final String jarPath = path;
+			final File jarDirectory = directory;
+			downloads.submit(new File(directory, dependency.getJarName()),
+				new Callable<File>() {
+
+					@Override
+					public File call() throws Exception {
+						return downloadJar(repositories, jarPath, dependency, jarDirectory,
+							message);
+					}
+				});
+		}
+	}
+
+	/**
+	 * Downloads the .jar file of an artifact from the first repository that has
+	 * it.
+	 * <p>
+	 * If no repository has it, this is only a warning for optional dependencies.
+	 * </p>
+	 *
+	 * @return the downloaded file, or null if an optional file was not found
+	 */
+	protected File downloadJar(final List<String> repositories,
+		final String path, final Coordinate dependency, final File directory,
+		final String message) throws IOException, NoSuchAlgorithmException
+	{
+		IOException failure = new FileNotFoundException("Could not download " +
+			dependency.getJarName());
+		for (final String repositoryURL : repositories) {
+			if (missingArtifacts.isMissing(repositoryURL, dependency, "jar")) {
+				continue;
+			}
+			try {
+				final File result = downloadAndVerify(repositoryURL + path + dependency
+					.getJarName(), directory, message);
+				artifactRepositories.put(dependency.getArtifactKey(), repositoryURL);
+				return result;
+			}
+			catch (final FileNotFoundException e) {
+				missingArtifacts.setMissing(repositoryURL, dependency, "jar");
+				failure = e;
+			}
+			catch (final IOException e) {
+				failure = e;
+			}
+		}
+		if (dependency.optional) {
+			warnMissingOptional(dependency);
+			return null;
+		}
+		throw failure;
+	}
+
+	/**
+	 * Warns that an optional dependency could not be downloaded, once per
+	 * artifact.
+	 */
+	protected void warnMissingOptional(final Coordinate dependency) {
+		if (missingOptionals.add(dependency.getGAV())) {
+			err.println("[WARNING] Could not download optional dependency " +
+				dependency.getGAV());
 		}
 	}
 
-	protected void downloadAndVerify(final String url, final File directory,
+	/**
+	 * Determines whether a file exists.
+	 * <p>
+	 * If the file is still being downloaded, this waits for the download to
+	 * finish, as it might fail.
+	 * </p>
+	 *
+	 * @param file the file
+	 * @return whether the file is available
+	 */
+	protected boolean isAvailable(final File file) {
+		if (file.exists()) return true;
+		downloads.waitFor(file);
+		return file.exists();
+	}
+
+	/**
+	 * Waits for the downloads that were queued in the background.
+	 *
+	 * @throws IOException if a download failed
+	 */
+	public void awaitDownloads() throws IOException {
+		downloads.await();
+	}
+
+	protected File downloadAndVerify(final String url, final File directory,
 		final String message) throws IOException, NoSuchAlgorithmException
 	{
-		downloadAndVerify(url, directory, null, message);
+		return downloadAndVerify(url, directory, null, message);
 	}
 
-	protected void downloadAndVerify(final String url, final File directory,
+	protected File downloadAndVerify(final String url, final File directory,
 		String fileName, final String message) throws IOException,
 			NoSuchAlgorithmException
 	{
@@ -461,37 +818,95 @@ public class BuildEnvironment {
 		}
 		final File sha1 = download(new URL(url + ".sha1"), directory, fileName +
 			".sha1.new", null);
+		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
 		final File file = download(new URL(url), directory, fileName + ".new",
-			message);
+			message, null, digest);
+		return verify(file, digest.digest(), sha1, directory, fileName);
+	}
+
+	/**
+	 * Refreshes repository metadata, unless it is unchanged.
+	 * <p>
+	 * The validators (<i>ETag</i> and <i>Last-Modified</i>) of the previous
+	 * download are stored next to the metadata, so that an unchanged file costs
+	 * only a <i>304 Not Modified</i> response.
+	 * </p>
+	 *
+	 * @param url the URL of the metadata
+	 * @param file the local copy of the metadata
+	 * @param message the message to show when downloading, or null
+	 */
+	protected void downloadMetadata(final String url, final File file,
+		final String message) throws IOException, NoSuchAlgorithmException
+	{
+		final File directory = file.getParentFile();
+		final File validatorsFile = new File(directory, file.getName() +
+			".validators");
+		final Properties validators = new Properties();
+		if (file.exists() && validatorsFile.exists()) {
+			final InputStream in = new FileInputStream(validatorsFile);
+			try {
+				validators.load(in);
+			}
+			finally {
+				in.close();
+			}
+			if (!url.equals(validators.getProperty("url"))) validators.clear();
+		}
+
 		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
-		FileInputStream fileStream = new FileInputStream(file);
-		final DigestInputStream digestStream = new DigestInputStream(fileStream,
-			digest);
-		final byte[] buffer = new byte[131072];
-		while (digestStream.read(buffer) >= 0) {
-			/* do nothing */
+		final File downloaded = download(new URL(url), directory, file.getName() +
+			".new", message, validators, digest);
+		if (downloaded == null) {
+			if (verbose) err.println("Not modified: " + url);
+			// restart the update interval
+			file.setLastModified(System.currentTimeMillis());
+			return;
+		}
+		final File sha1 = download(new URL(url + ".sha1"), directory, file
+			.getName() + ".sha1.new", null);
+		verify(downloaded, digest.digest(), sha1, directory, file.getName());
+
+		if (validators.isEmpty()) {
+			validatorsFile.delete();
+			return;
+		}
+		validators.setProperty("url", url);
+		final OutputStream out = new FileOutputStream(validatorsFile);
+		try {
+			validators.store(out, null);
 		}
-		digestStream.close();
+		finally {
+			out.close();
+		}
+	}
 
-		final byte[] digestBytes = digest.digest();
-		fileStream = new FileInputStream(sha1);
+	/**
+	 * Checks the digest of a downloaded file against a <i>.sha1</i> file and
+	 * moves both into place.
+	 */
+	private File verify(final File file, final byte[] digestBytes,
+		final File sha1, final File directory, final String fileName)
+		throws IOException
+	{
+		final byte[] hex = Files.readAllBytes(sha1.toPath());
 		for (int i = 0; i < digestBytes.length; i++) {
-			final int value = (hexNybble(fileStream.read()) << 4) | hexNybble(
-				fileStream.read());
+			final int value = 2 * i + 1 < hex.length ? (hexNybble(hex[2 * i]) << 4) |
+				hexNybble(hex[2 * i + 1]) : -1;
 			final int d = digestBytes[i] & 0xff;
 			if (value != d) {
 				String actual = "";
 				for (final byte b : digestBytes)
 					actual += String.format("%02x", b & 0xff);
-				fileStream.close();
 				throw new IOException("SHA1 mismatch: " + sha1 + ": " + Integer
 					.toHexString(value) + " != " + Integer.toHexString(d) +
 					" (actual SHA-1: " + actual + ")");
 			}
 		}
-		fileStream.close();
-		rename(file, new File(directory, fileName));
+		final File result = new File(directory, fileName);
+		rename(file, result);
 		rename(sha1, new File(directory, fileName + ".sha1"));
+		return result;
 	}
 
 	protected void rename(final File source, final File target)
@@ -595,6 +1010,33 @@ public class BuildEnvironment {
 
 	protected File download(final URL url, final File directory,
 		final String fileName, final String message) throws IOException
+	{
+		return download(url, directory, fileName, message, null, null);
+	}
+
+	/**
+	 * Downloads a file, possibly conditionally.
+	 *
+	 * @param validators the validators of a previous download; if non-empty,
+	 *          the file is only downloaded if it changed. Updated with the
+	 *          validators of the new download once it was stored completely.
+	 * @return the downloaded file, or null if it was not modified
+	 */
+	protected File download(final URL url, final File directory,
+		final String fileName, final String message, final Properties validators)
+		throws IOException
+	{
+		return download(url, directory, fileName, message, validators, null);
+	}
+
+	/**
+	 * Downloads a file, computing its digest on the fly.
+	 *
+	 * @param digest the digest to update with the contents, or null
+	 */
+	protected File download(final URL url, final File directory,
+		final String fileName, final String message, final Properties validators,
+		final MessageDigest digest) throws IOException
 	{
 		if (offlineMode) throw new RuntimeException("Offline!");
 		if (verbose) err.println("Trying to download " + url);
@@ -603,26 +1045,99 @@ public class BuildEnvironment {
 			name = url.getPath();
 			name = name.substring(name.lastIndexOf('/') + 1);
 		}
-		final URLConnection connection = url.openConnection();
-		if (connection instanceof HttpURLConnection) {
-			final HttpURLConnection http = (HttpURLConnection) connection;
-			http.setRequestProperty("User-Agent", "MiniMaven/2.0.0-SNAPSHOT");
-		}
-		final InputStream in = connection.getInputStream();
-		if (message != null) err.println(message);
-		directory.mkdirs();
-		final File result = new File(directory, name);
-		if (verbose) {
-			err.println("Downloading " + url + " to " + result.getAbsolutePath());
+		for (int attempt = 0;; attempt++) {
+			final IOException failure;
+			// a failed attempt must not leave the validators of the new version
+			// behind: a retry would be answered with "not modified"
+			final Properties attemptValidators = validators == null ? null
+				: new Properties();
+			if (validators != null) attemptValidators.putAll(validators);
+			downloads.acquire(url);
+			try {
+				InputStream in = transport.open(url, attemptValidators);
+				if (in == null) return null;
+				if (digest != null) {
+					digest.reset();
+					in = new DigestInputStream(in, digest);
+				}
+				if (message != null && attempt == 0) err.println(message);
+				directory.mkdirs();
+				final File result = new File(directory, name);
+				if (verbose) {
+					err.println("Downloading " + url + " to " + result
+						.getAbsolutePath());
+				}
+				copy(in, result);
+				if (validators != null) {
+					validators.clear();
+					validators.putAll(attemptValidators);
+				}
+				return result;
+			}
+			catch (final FileNotFoundException e) {
+				throw e;
+			}
+			catch (final IOException e) {
+				if (attempt >= downloadRetries) throw e;
+				failure = e;
+			}
+			finally {
+				downloads.release(url);
+			}
+			// back off exponentially (1s, 2s, 4s, ...), letting other downloads
+			// from the same host proceed in the meantime
+			final long delay = 1000l << Math.min(attempt, 6);
+			if (verbose) {
+				err.println("Retrying " + url + " in " + delay + "ms: " + failure);
+			}
+			try {
+				Thread.sleep(delay);
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
 		}
-		copy(in, result);
-		return result;
 	}
 
+	/**
+	 * Copies a file, letting the operating system do the work.
+	 * <p>
+	 * An existing target is replaced rather than overwritten in place, so that
+	 * files it is hard-linked to are left alone.
+	 * </p>
+	 */
 	public static void copyFile(final File source, final File target)
 		throws IOException
 	{
-		copy(new FileInputStream(source), target);
+		Files.copy(source.toPath(), target.toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Installs an artifact, hard-linking it if it comes from the local
+	 * repository and {@code -Dminimaven.install.hardlinks=true} was specified.
+	 *
+	 * @param source the artifact
+	 * @param target where to install it
+	 */
+	protected void install(final File source, final File target)
+		throws IOException
+	{
+		if (hardLinks && source.getPath().startsWith(mavenRepository.getPath())) {
+			try {
+				Files.deleteIfExists(target.toPath());
+				Files.createLink(target.toPath(), source.toPath());
+				return;
+			}
+			catch (final IOException e) {
+				if (verbose) err.println("Could not link " + target + ": " + e);
+			}
+			catch (final UnsupportedOperationException e) {
+				if (verbose) err.println("Could not link " + target + ": " + e);
+			}
+		}
+		copyFile(source, target);
 	}
 
 	public static void copy(final InputStream in, final File target)
@@ -655,36 +1170,8 @@ public class BuildEnvironment {
 	protected static int compareVersion(final String version1,
 		final String version2)
 	{
-		if (version1 == null) return version2 == null ? 0 : -1;
-		if (version1.equals(version2)) return 0;
-
-		// prefer snapshot over timestamp versions
-		// (AKA the mpicbg problem)
-		if (isTimestampVersion(version1) && isSnapshotVersion(version2)) return -1;
-		if (isSnapshotVersion(version1) && isTimestampVersion(version2)) return +1;
-
-		final String[] split1 = version1.split("\\.");
-		final String[] split2 = version2.split("\\.");
-
-		for (int i = 0;; i++) {
-			if (i == split1.length) return i == split2.length ? 0 : -1;
-			if (i == split2.length) return +1;
-			final int end1 = firstNonDigit(split1[i]);
-			final int end2 = firstNonDigit(split2[i]);
-			if (end1 != end2) return end1 - end2;
-			int result = end1 == 0 ? 0 : Integer.parseInt(split1[i].substring(0,
-				end1)) - Integer.parseInt(split2[i].substring(0, end2));
-			if (result != 0) return result;
-			result = split1[i].substring(end1).compareTo(split2[i].substring(end2));
-			if (result != 0) return result;
-		}
-	}
-
-	protected static int firstNonDigit(final String string) {
-		final int length = string.length();
-		for (int i = 0; i < length; i++)
-			if (!Character.isDigit(string.charAt(i))) return i;
-		return length;
+		return Version.compare(version1 == null ? null : new Version(version1),
+			version2 == null ? null : new Version(version2));
 	}
 
 	protected String getImplementationBuild(final File fileOrDirectory) {
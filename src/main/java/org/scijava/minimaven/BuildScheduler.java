@@ -0,0 +1,302 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.scijava.minimaven.JavaCompiler.CompileError;
+import org.xml.sax.SAXException;
+
+/**
+ * Builds the projects of a reactor concurrently.
+ * <p>
+ * The modules (and all of their dependencies that need to be built from
+ * source) are arranged in a directed acyclic graph; a module is only handed to
+ * the worker pool once all of the modules it depends on have been built.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class BuildScheduler {
+
+	protected final BuildEnvironment env;
+	protected final int threads;
+
+	public BuildScheduler(final BuildEnvironment env) {
+		this(env, env.getThreads());
+	}
+
+	public BuildScheduler(final BuildEnvironment env, final int threads) {
+		this.env = env;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Builds the given project, its modules and their dependencies.
+	 *
+	 * @param root the project to build
+	 * @param makeJar build .jar files
+	 * @param forceBuild recompile the project and its modules even if they are
+	 *          up-to-date (the projects they depend upon are only rebuilt if
+	 *          they are not up-to-date)
+	 * @throws CompileError
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	public void build(final MavenProject root, final boolean makeJar,
+		final boolean forceBuild) throws CompileError, IOException,
+			ParserConfigurationException, SAXException
+	{
+		build(Collections.singleton(root), makeJar, forceBuild);
+	}
+
+	/**
+	 * Builds the given projects, their modules and their dependencies.
+	 *
+	 * @param roots the projects to build
+	 * @param makeJar build .jar files
+	 * @param forceBuild recompile the projects and their modules even if they
+	 *          are up-to-date
+	 * @throws CompileError
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	public void build(final Collection<MavenProject> roots,
+		final boolean makeJar, final boolean forceBuild) throws CompileError,
+		IOException, ParserConfigurationException, SAXException
+	{
+		final Map<MavenProject, Set<MavenProject>> upstreams = getGraph(roots);
+		final Set<MavenProject> requested = forceBuild ? getModules(roots)
+			: null;
+		final Map<MavenProject, List<MavenProject>> downstreams =
+			new HashMap<MavenProject, List<MavenProject>>();
+		final Map<MavenProject, Integer> pending =
+			new HashMap<MavenProject, Integer>();
+		final List<MavenProject> ready = new ArrayList<MavenProject>();
+		for (final Map.Entry<MavenProject, Set<MavenProject>> entry : upstreams
+			.entrySet())
+		{
+			final MavenProject project = entry.getKey();
+			pending.put(project, entry.getValue().size());
+			if (entry.getValue().isEmpty()) ready.add(project);
+			for (final MavenProject upstream : entry.getValue()) {
+				List<MavenProject> list = downstreams.get(upstream);
+				if (list == null) {
+					list = new ArrayList<MavenProject>();
+					downstreams.put(upstream, list);
+				}
+				list.add(project);
+			}
+		}
+
+		if (env.verbose) {
+			env.err.println("Building " + upstreams.size() + " project" +
+				(upstreams.size() == 1 ? "" : "s") + " using " + threads + " thread" +
+				(threads == 1 ? "" : "s"));
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads,
+			new ThreadFactory() {
+
+				private int counter;
+
+				@Override
+				public synchronized Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "MiniMaven-build-" +
+						++counter);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		final CompletionService<MavenProject> completion =
+			new ExecutorCompletionService<MavenProject>(executor);
+		Throwable failure = null;
+		int running = 0, remaining = upstreams.size();
+		try {
+			for (;;) {
+				if (failure == null) {
+					for (final MavenProject project : ready) {
+						completion.submit(new Callable<MavenProject>() {
+
+							@Override
+							public MavenProject call() throws Exception {
+								project.build(makeJar, requested != null && requested
+									.contains(project));
+								return project;
+							}
+						});
+						running++;
+					}
+				}
+				ready.clear();
+				if (running == 0) break;
+				final MavenProject done;
+				try {
+					done = completion.take().get();
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				catch (final ExecutionException e) {
+					running--;
+					if (failure == null) failure = e.getCause();
+					continue;
+				}
+				running--;
+				remaining--;
+				final List<MavenProject> list = downstreams.get(done);
+				if (list == null) continue;
+				for (final MavenProject project : list) {
+					final int count = pending.get(project) - 1;
+					pending.put(project, count);
+					if (count == 0) ready.add(project);
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		if (failure != null) rethrow(failure);
+		if (remaining > 0) {
+			final List<MavenProject> cycle = new ArrayList<MavenProject>();
+			for (final Map.Entry<MavenProject, Integer> entry : pending.entrySet()) {
+				if (entry.getValue() > 0) cycle.add(entry.getKey());
+			}
+			throw new RuntimeException("Dependency cycle between " + cycle);
+		}
+	}
+
+	/**
+	 * Determines the projects to build and the edges between them.
+	 *
+	 * @param root the project to build
+	 * @return a map from each project to the projects it depends upon
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	protected Map<MavenProject, Set<MavenProject>> getGraph(
+		final MavenProject root) throws IOException, ParserConfigurationException,
+			SAXException
+	{
+		return getGraph(Collections.singleton(root));
+	}
+
+	protected Map<MavenProject, Set<MavenProject>> getGraph(
+		final Collection<MavenProject> roots) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final Map<MavenProject, Set<MavenProject>> result =
+			new HashMap<MavenProject, Set<MavenProject>>();
+		final Stack<MavenProject> stack = new Stack<MavenProject>();
+		stack.addAll(roots);
+		while (!stack.empty()) {
+			final MavenProject project = stack.pop();
+			if (project == null || result.containsKey(project)) continue;
+			final Set<MavenProject> upstream = new LinkedHashSet<MavenProject>();
+			result.put(project, upstream);
+			for (final MavenProject child : project.getChildren()) {
+				stack.push(child);
+			}
+			if (!project.getBuildFromSource()) continue;
+			for (final MavenProject dependency : project.getDependencies(true,
+				env.downloadAutomatically, "test"))
+			{
+				if (dependency == null || dependency == project ||
+					!dependency.getBuildFromSource())
+				{
+					continue;
+				}
+				upstream.add(dependency);
+				stack.push(dependency);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Determines the given projects and, recursively, their modules.
+	 *
+	 * @param roots the projects
+	 * @return the projects and their modules
+	 */
+	protected Set<MavenProject> getModules(final Collection<MavenProject> roots)
+		throws IOException, ParserConfigurationException, SAXException
+	{
+		final Set<MavenProject> result = new LinkedHashSet<MavenProject>();
+		final Stack<MavenProject> stack = new Stack<MavenProject>();
+		stack.addAll(roots);
+		while (!stack.empty()) {
+			final MavenProject project = stack.pop();
+			if (project == null || !result.add(project)) continue;
+			for (final MavenProject child : project.getChildren()) {
+				stack.push(child);
+			}
+		}
+		return result;
+	}
+
+	private static void rethrow(final Throwable t) throws CompileError,
+		IOException, ParserConfigurationException, SAXException
+	{
+		if (t instanceof CompileError) throw (CompileError) t;
+		if (t instanceof IOException) throw (IOException) t;
+		if (t instanceof ParserConfigurationException) {
+			throw (ParserConfigurationException) t;
+		}
+		if (t instanceof SAXException) throw (SAXException) t;
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		throw new RuntimeException(t);
+	}
+}
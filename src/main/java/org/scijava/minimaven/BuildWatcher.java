@@ -0,0 +1,291 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.scijava.minimaven.JavaCompiler.CompileError;
+import org.xml.sax.SAXException;
+
+/**
+ * Rebuilds projects whenever their sources change.
+ * <p>
+ * The parsed projects stay in memory, and the source and resource directories
+ * of all modules are watched for changes. After a burst of changes settled
+ * down, only the affected modules and the modules depending on them are
+ * checked and rebuilt; all other modules are known to be up-to-date already.
+ * If a <i>pom.xml</i> of any of the projects or of their parents changes,
+ * {@link #watch()} returns so that the caller can parse the projects afresh.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class BuildWatcher {
+
+	protected final BuildEnvironment env;
+	protected final MavenProject pom;
+	protected long debounce = 200;
+
+	private final Map<MavenProject, Set<MavenProject>> upstreams;
+	private final Map<WatchKey, MavenProject> sources =
+		new HashMap<WatchKey, MavenProject>();
+	private final Map<WatchKey, MavenProject> poms =
+		new HashMap<WatchKey, MavenProject>();
+	private WatchService service;
+
+	public BuildWatcher(final BuildEnvironment env, final MavenProject pom)
+		throws IOException, ParserConfigurationException, SAXException
+	{
+		this.env = env;
+		this.pom = pom;
+		upstreams = new BuildScheduler(env).getGraph(pom);
+		final String value = System.getProperty("minimaven.watch.debounce");
+		if (value != null && !value.equals("")) try {
+			debounce = Math.max(0, Long.parseLong(value));
+		}
+		catch (final NumberFormatException e) {
+			env.err.println("Warning: ignoring invalid debounce delay " + value);
+		}
+	}
+
+	/**
+	 * Builds the project, just like the <i>compile</i> command.
+	 * <p>
+	 * Compile errors are reported, but do not stop the watcher.
+	 * </p>
+	 */
+	public void build() throws IOException, ParserConfigurationException,
+		SAXException
+	{
+		try {
+			build(pom);
+		}
+		catch (final CompileError e) {
+			env.err.println(e.getMessage());
+		}
+	}
+
+	private void build(final MavenProject project) throws CompileError,
+		IOException, ParserConfigurationException, SAXException
+	{
+		if (env.getThreads() > 1) new BuildScheduler(env).build(project, false,
+			false);
+		else project.build();
+	}
+
+	/**
+	 * Watches the projects and rebuilds them as needed.
+	 * <p>
+	 * This method only returns when a <i>pom.xml</i> file was modified.
+	 * </p>
+	 *
+	 * @throws InterruptedException when the thread was interrupted
+	 */
+	public void watch() throws IOException, InterruptedException,
+		ParserConfigurationException, SAXException
+	{
+		service = FileSystems.getDefault().newWatchService();
+		try {
+			int count = 0;
+			for (final MavenProject project : upstreams.keySet()) {
+				// aggregators and parents are not built, but their POMs matter
+				for (MavenProject current = project; current != null; current =
+					current.getParent())
+				{
+					registerPOM(current);
+				}
+				if (!project.getBuildFromSource()) continue;
+				final File source = project.getSourceDirectory();
+				registerRecursively(source.toPath(), project);
+				registerRecursively(new File(source.getParentFile(), "resources")
+					.toPath(), project);
+				count++;
+			}
+			env.err.println("Watching " + count + " project" + (count == 1 ? ""
+				: "s") + " for changes");
+
+			for (;;) {
+				final Set<MavenProject> changed = new LinkedHashSet<MavenProject>();
+				if (handle(service.take(), changed)) return;
+				for (;;) {
+					final WatchKey key = service.poll(debounce, TimeUnit.MILLISECONDS);
+					if (key == null) break;
+					if (handle(key, changed)) return;
+				}
+				if (!changed.isEmpty()) rebuild(changed);
+			}
+		}
+		finally {
+			service.close();
+			service = null;
+			sources.clear();
+			poms.clear();
+		}
+	}
+
+	/**
+	 * Rebuilds the given projects and the projects depending on them.
+	 */
+	protected void rebuild(final Set<MavenProject> changed) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final Set<MavenProject> affected = getDownstreams(changed);
+		for (final MavenProject project : affected) {
+			project.resetBuildState();
+		}
+		if (env.verbose) {
+			env.err.println("Changes in " + changed + " affect " + affected);
+		}
+		try {
+			if (env.getThreads() > 1) new BuildScheduler(env).build(affected, false,
+				false);
+			else for (final MavenProject project : affected) {
+				project.build();
+			}
+		}
+		catch (final CompileError e) {
+			env.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Determines the given projects and all projects depending on them,
+	 * directly or indirectly.
+	 */
+	protected Set<MavenProject> getDownstreams(final Set<MavenProject> projects) {
+		final Set<MavenProject> result = new LinkedHashSet<MavenProject>();
+		final Stack<MavenProject> stack = new Stack<MavenProject>();
+		stack.addAll(projects);
+		while (!stack.empty()) {
+			final MavenProject project = stack.pop();
+			if (!result.add(project)) continue;
+			for (final Map.Entry<MavenProject, Set<MavenProject>> entry : upstreams
+				.entrySet())
+			{
+				if (entry.getValue().contains(project)) stack.push(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records the projects affected by the events of a watch key.
+	 *
+	 * @return whether a <i>pom.xml</i> file changed
+	 */
+	private boolean handle(final WatchKey key, final Set<MavenProject> changed)
+		throws IOException
+	{
+		try {
+			if (poms.containsKey(key)) {
+				for (final WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW || "pom.xml".equals(event.context()
+						.toString()))
+					{
+						return true;
+					}
+				}
+				return false;
+			}
+			final MavenProject project = sources.get(key);
+			if (project == null) {
+				key.pollEvents();
+				return false;
+			}
+			final Path directory = (Path) key.watchable();
+			for (final WatchEvent<?> event : key.pollEvents()) {
+				changed.add(project);
+				if (event.kind() == ENTRY_CREATE) {
+					// new subdirectories need to be watched, too
+					final Path path = directory.resolve((Path) event.context());
+					if (Files.isDirectory(path)) registerRecursively(path, project);
+				}
+			}
+			return false;
+		}
+		finally {
+			if (!key.reset()) sources.remove(key);
+		}
+	}
+
+	private void registerPOM(final MavenProject project) throws IOException {
+		final File directory = project.directory;
+		if (directory == null || !directory.isDirectory()) return;
+		// the POMs in the local repository are not edited
+		if (directory.getPath().startsWith(BuildEnvironment.mavenRepository
+			.getPath()))
+		{
+			return;
+		}
+		poms.put(directory.toPath().register(service, ENTRY_CREATE, ENTRY_DELETE,
+			ENTRY_MODIFY), project);
+	}
+
+	private void registerRecursively(final Path directory,
+		final MavenProject project) throws IOException
+	{
+		if (!Files.isDirectory(directory)) return;
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir,
+				final BasicFileAttributes attributes) throws IOException
+			{
+				sources.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE,
+					ENTRY_MODIFY), project);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
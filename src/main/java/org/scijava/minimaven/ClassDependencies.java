@@ -0,0 +1,457 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records which classes were compiled from which source file, and which
+ * classes they reference.
+ * <p>
+ * This information is persisted in the <i>target/</i> directory and allows
+ * recompiling only the source files that changed, plus the ones depending on
+ * them.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class ClassDependencies {
+
+	private final static String HEADER = "# MiniMaven class dependencies v2";
+
+	protected final File file, sourceDirectory, classDirectory;
+	protected final Map<String, ClassInfo> classes =
+		new TreeMap<String, ClassInfo>();
+	// the classes removed by deleteClasses(), to detect changed constants
+	protected final Map<String, ClassInfo> deleted =
+		new HashMap<String, ClassInfo>();
+
+	/**
+	 * What we know about a compiled class.
+	 */
+	protected static class ClassInfo {
+
+		protected String name, source;
+		// a hash of the public interface, or empty if the class is not public
+		protected String abi;
+		protected long stamp;
+		protected int constants;
+		protected String[] supertypes, references;
+	}
+
+	public ClassDependencies(final File file, final File sourceDirectory,
+		final File classDirectory)
+	{
+		this.file = file;
+		this.sourceDirectory = sourceDirectory;
+		this.classDirectory = classDirectory;
+	}
+
+	/**
+	 * Reads the recorded dependencies.
+	 * <p>
+	 * If the file does not exist or cannot be parsed, the result is empty, i.e.
+	 * a full build is required.
+	 * </p>
+	 */
+	public static ClassDependencies load(final File file,
+		final File sourceDirectory, final File classDirectory)
+	{
+		final ClassDependencies result = new ClassDependencies(file,
+			sourceDirectory, classDirectory);
+		if (!file.exists()) return result;
+		try {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				if (!HEADER.equals(reader.readLine())) return result;
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null) break;
+					final String[] list = line.split("\t", -1);
+					final ClassInfo info = new ClassInfo();
+					info.name = list[0];
+					info.stamp = Long.parseLong(list[1]);
+					info.source = list[2];
+					info.constants = Integer.parseInt(list[3]);
+					info.supertypes = split(list[4]);
+					info.references = split(list[5]);
+					info.abi = list[6];
+					result.classes.put(info.name, info);
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final RuntimeException e) {
+			result.classes.clear();
+		}
+		catch (final IOException e) {
+			result.classes.clear();
+		}
+		return result;
+	}
+
+	public void save() throws IOException {
+		file.getParentFile().mkdirs();
+		final PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.println(HEADER);
+			for (final ClassInfo info : classes.values()) {
+				writer.println(info.name + "\t" + info.stamp + "\t" + info.source +
+					"\t" + info.constants + "\t" + join(info.supertypes) + "\t" + join(
+						info.references) + "\t" + info.abi);
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	public boolean isEmpty() {
+		return classes.isEmpty();
+	}
+
+	/**
+	 * Determines the source files that were deleted since they were compiled.
+	 *
+	 * @return the paths of the deleted source files, relative to the source
+	 *         directory
+	 */
+	public Set<String> getDeletedSources() {
+		final Set<String> result = new TreeSet<String>();
+		for (final ClassInfo info : classes.values()) {
+			if (!new File(sourceDirectory, info.source).exists()) {
+				result.add(info.source);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Determines the source files that need to be compiled.
+	 * <p>
+	 * These are the source files that are new or have changed since they were
+	 * compiled, and those source files whose classes refer to classes of a
+	 * changed or deleted source file (or to subclasses thereof).
+	 * </p>
+	 *
+	 * @return the relative paths of the source files to compile
+	 */
+	public Set<String> getStaleSources() {
+		return getStaleSources(null);
+	}
+
+	/**
+	 * Determines the source files that need to be compiled.
+	 * <p>
+	 * Like {@link #getStaleSources()}, but the caller determines which source
+	 * files have changed, e.g. by comparing their contents. Sources whose classes
+	 * are missing are always considered stale.
+	 * </p>
+	 *
+	 * @param changedSources the relative paths of the changed source files, or
+	 *          null to compare modification times
+	 * @return the relative paths of the source files to compile
+	 */
+	public Set<String> getStaleSources(
+		final Collection<String> changedSources)
+	{
+		final Map<String, List<ClassInfo>> bySource = getClassesBySource();
+		final TreeSnapshot sources = TreeSnapshot.scan(sourceDirectory);
+		final Set<String> present = listSources(sources);
+
+		final Set<String> result = new TreeSet<String>();
+		for (final String source : present) {
+			final List<ClassInfo> list = bySource.get(source);
+			if (list == null || (changedSources != null && changedSources.contains(
+				source)))
+			{
+				result.add(source);
+				continue;
+			}
+			final long lastModified = changedSources != null ? 0 : sources
+				.getLastModified(source);
+			for (final ClassInfo info : list) {
+				final long stamp = getClassFile(info.name).lastModified();
+				if (stamp == 0 || stamp < lastModified) {
+					result.add(source);
+					break;
+				}
+			}
+		}
+
+		// the classes whose users need to be recompiled, too
+		final Set<String> affected = new HashSet<String>();
+		for (final String source : result) {
+			addNames(affected, bySource.get(source));
+		}
+		for (final String source : bySource.keySet()) {
+			if (!present.contains(source)) addNames(affected, bySource.get(source));
+		}
+		if (affected.isEmpty()) return result;
+		for (boolean changed = true; changed;) {
+			changed = false;
+			for (final ClassInfo info : classes.values()) {
+				if (!affected.contains(info.name) && containsAny(affected,
+					info.supertypes))
+				{
+					affected.add(info.name);
+					changed = true;
+				}
+			}
+		}
+		for (final ClassInfo info : classes.values()) {
+			if (present.contains(info.source) && (affected.contains(info.name) ||
+				containsAny(affected, info.references)))
+			{
+				result.add(info.source);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes the classes compiled from the given source files.
+	 * <p>
+	 * This makes sure that no stale inner or secondary classes remain after the
+	 * source files have been recompiled (or deleted).
+	 * </p>
+	 *
+	 * @param sources the relative paths of the source files
+	 */
+	public void deleteClasses(final Collection<String> sources) {
+		final Set<String> set = new HashSet<String>(sources);
+		for (final ClassInfo info : new ArrayList<ClassInfo>(classes.values())) {
+			if (!set.contains(info.source)) continue;
+			getClassFile(info.name).delete();
+			classes.remove(info.name);
+			deleted.put(info.name, info);
+		}
+	}
+
+	/**
+	 * Updates the recorded dependencies from the compiled classes.
+	 * <p>
+	 * The constants of recompiled classes are compared to the ones recorded
+	 * before the classes were deleted via {@link #deleteClasses(Collection)}.
+	 * </p>
+	 *
+	 * @return the names of the classes whose compile-time constants changed (or
+	 *         that were removed while defining constants)
+	 * @throws IOException
+	 */
+	public Set<String> update() throws IOException {
+		final Set<String> result = new TreeSet<String>();
+		final Map<String, ClassInfo> previous = new HashMap<String, ClassInfo>(
+			classes);
+		classes.clear();
+		final TreeSnapshot snapshot = TreeSnapshot.scan(classDirectory);
+		for (final String path : snapshot.getPaths()) {
+			if (!path.endsWith(".class")) continue;
+			final String name = path.substring(0, path.length() - 6);
+			final File classFile = snapshot.getFile(path);
+			final long stamp = snapshot.getLastModified(path);
+			ClassInfo info = previous.get(name);
+			if (info == null || info.stamp != stamp) {
+				final ClassInfo old = info != null ? info : deleted.remove(name);
+				info = parse(name, classFile, stamp);
+				if (old != null && old.constants != info.constants) result.add(name);
+			}
+			classes.put(name, info);
+		}
+		final int noConstants = "".hashCode();
+		for (final ClassInfo info : deleted.values()) {
+			if (!classes.containsKey(info.name) && info.constants != noConstants) {
+				result.add(info.name);
+			}
+		}
+		deleted.clear();
+		return result;
+	}
+
+	private ClassInfo parse(final String name, final File classFile,
+		final long stamp) throws IOException
+	{
+		final ClassFile parsed = ClassFile.parse(classFile);
+		final ClassInfo info = new ClassInfo();
+		info.name = name;
+		info.stamp = stamp;
+		final int slash = info.name.lastIndexOf('/');
+		final String packagePath = info.name.substring(0, slash + 1);
+		if (parsed.getSourceFile() != null) {
+			info.source = packagePath + parsed.getSourceFile();
+		}
+		else {
+			final int dollar = info.name.indexOf('$', slash + 1);
+			info.source = (dollar < 0 ? info.name : info.name.substring(0,
+				dollar)) + ".java";
+		}
+		final StringBuilder constants = new StringBuilder();
+		for (final ClassFile.Member field : parsed.getFields()) {
+			if ((field.getAccess() & ClassFile.ACC_PRIVATE) != 0 || field
+				.getConstantValue() == null)
+			{
+				continue;
+			}
+			constants.append(field.getName()).append('=').append(field
+				.getConstantValue()).append('\n');
+		}
+		info.constants = constants.toString().hashCode();
+		final List<String> supertypes = new ArrayList<String>();
+		if (parsed.getSuperName() != null) supertypes.add(parsed.getSuperName());
+		supertypes.addAll(Arrays.asList(parsed.getInterfaces()));
+		info.supertypes = supertypes.toArray(new String[supertypes.size()]);
+		info.references = parsed.getReferences().toArray(new String[parsed
+			.getReferences().size()]);
+		final String abi = parsed.getAbi();
+		info.abi = abi == null ? "" : sha1(abi).substring(0, 16);
+		return info;
+	}
+
+	/**
+	 * Computes a fingerprint of the application binary interface (ABI) of all
+	 * classes, as recorded by the last call to {@link #update()}.
+	 * <p>
+	 * The fingerprint changes only if the public or protected signatures,
+	 * constants or annotations of a public class change, i.e. when projects
+	 * depending on this one might need to be recompiled.
+	 * </p>
+	 *
+	 * @return the fingerprint
+	 */
+	public String getAbiFingerprint() {
+		final StringBuilder builder = new StringBuilder();
+		for (final ClassInfo info : classes.values()) {
+			if (info.abi.equals("")) continue;
+			builder.append(info.name).append(' ').append(info.abi).append('\n');
+		}
+		return sha1(builder.toString());
+	}
+
+	protected static String sha1(final String string) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			final byte[] bytes = digest.digest(string.getBytes("UTF-8"));
+			final StringBuilder builder = new StringBuilder();
+			for (final byte b : bytes) {
+				builder.append(String.format("%02x", b & 0xff));
+			}
+			return builder.toString();
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (final UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Map<String, List<ClassInfo>> getClassesBySource() {
+		final Map<String, List<ClassInfo>> result =
+			new HashMap<String, List<ClassInfo>>();
+		for (final ClassInfo info : classes.values()) {
+			List<ClassInfo> list = result.get(info.source);
+			if (list == null) {
+				list = new ArrayList<ClassInfo>();
+				result.put(info.source, list);
+			}
+			list.add(info);
+		}
+		return result;
+	}
+
+	private File getClassFile(final String name) {
+		return new File(classDirectory, name + ".class");
+	}
+
+	private static Set<String> listSources(final TreeSnapshot snapshot) {
+		final Set<String> result = new TreeSet<String>();
+		for (final String path : snapshot.getPaths()) {
+			if (path.endsWith(".java") && !path.endsWith("/package-info.java") &&
+				!path.equals("package-info.java"))
+			{
+				result.add(path);
+			}
+		}
+		return result;
+	}
+
+	private static void addNames(final Set<String> result,
+		final List<ClassInfo> list)
+	{
+		if (list == null) return;
+		for (final ClassInfo info : list) {
+			result.add(info.name);
+		}
+	}
+
+	private static boolean containsAny(final Set<String> set,
+		final String[] array)
+	{
+		for (final String string : array) {
+			if (set.contains(string)) return true;
+		}
+		return false;
+	}
+
+	private static String[] split(final String string) {
+		if (string.equals("")) return new String[0];
+		return string.split(" ");
+	}
+
+	private static String join(final String[] array) {
+		final StringBuilder builder = new StringBuilder();
+		for (final String string : array) {
+			if (builder.length() > 0) builder.append(' ');
+			builder.append(string);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A minimal parser for .class files.
+ * <p>
+ * Only the information needed to determine which classes need to be
+ * recompiled is extracted: the class hierarchy, the source file, the members
+ * and the names of all referenced classes.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class ClassFile {
+
+	public final static int ACC_PUBLIC = 0x0001;
+	public final static int ACC_PRIVATE = 0x0002;
+	public final static int ACC_PROTECTED = 0x0004;
+	public final static int ACC_STATIC = 0x0008;
+	public final static int ACC_FINAL = 0x0010;
+
+	protected int access;
+	protected String name, superName, sourceFile, signature, annotations;
+	protected String[] interfaces;
+	protected List<Member> fields = new ArrayList<Member>();
+	protected List<Member> methods = new ArrayList<Member>();
+	protected Set<String> references = new TreeSet<String>();
+
+	/**
+	 * A field or a method.
+	 */
+	public static class Member {
+
+		protected int access;
+		protected String name, descriptor, signature, annotations;
+		// for fields only: the value of a compile-time constant
+		protected Object constantValue;
+		// for methods only: the declared exceptions, and the default value of
+		// annotation elements
+		protected String exceptions, annotationDefault;
+
+		public int getAccess() {
+			return access;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescriptor() {
+			return descriptor;
+		}
+
+		public Object getConstantValue() {
+			return constantValue;
+		}
+
+		/**
+		 * Describes the parts of this member that are visible to other classes.
+		 */
+		protected void appendAbi(final StringBuilder builder) {
+			builder.append(access & ABI_ACCESS_MASK).append(' ').append(name).append(
+				descriptor);
+			if (signature != null) builder.append(" signature=").append(signature);
+			if (constantValue != null) {
+				builder.append(" value=").append(constantValue);
+			}
+			if (exceptions != null) builder.append(" throws ").append(exceptions);
+			if (annotationDefault != null) {
+				builder.append(" default=").append(annotationDefault);
+			}
+			if (annotations != null) builder.append(' ').append(annotations);
+			builder.append('\n');
+		}
+	}
+
+	// public, private, protected, static, final, volatile/bridge,
+	// transient/varargs, interface, abstract, annotation, enum
+	private final static int ABI_ACCESS_MASK = 0x66df;
+
+	public static ClassFile parse(final File file) throws IOException {
+		final InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return parse(in);
+		}
+		catch (final IOException e) {
+			throw new IOException("Error parsing " + file, e);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	public static ClassFile parse(final InputStream stream) throws IOException {
+		final DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != 0xcafebabe) throw new IOException("Not a class file");
+		in.readUnsignedShort(); // minor
+		in.readUnsignedShort(); // major
+
+		final int count = in.readUnsignedShort();
+		final Object[] pool = new Object[count];
+		// for Class and String entries: the index of the Utf8 entry
+		final int[] indexes = new int[count];
+		for (int i = 1; i < count; i++) {
+			final int tag = in.readUnsignedByte();
+			switch (tag) {
+				case 1: // Utf8
+					pool[i] = in.readUTF();
+					break;
+				case 3: // Integer
+					pool[i] = in.readInt();
+					break;
+				case 4: // Float
+					pool[i] = in.readFloat();
+					break;
+				case 5: // Long
+					pool[i++] = in.readLong();
+					break;
+				case 6: // Double
+					pool[i++] = in.readDouble();
+					break;
+				case 7: // Class
+					indexes[i] = in.readUnsignedShort();
+					pool[i] = Boolean.TRUE;
+					break;
+				case 8: // String
+					indexes[i] = in.readUnsignedShort();
+					break;
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					in.readUnsignedShort();
+					break;
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					in.readInt();
+					break;
+				case 15: // MethodHandle
+					in.readUnsignedByte();
+					in.readUnsignedShort();
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag: " + tag);
+			}
+		}
+
+		final ClassFile result = new ClassFile();
+		result.access = in.readUnsignedShort();
+		result.name = className(pool, indexes, in.readUnsignedShort());
+		result.superName = className(pool, indexes, in.readUnsignedShort());
+		result.interfaces = new String[in.readUnsignedShort()];
+		for (int i = 0; i < result.interfaces.length; i++) {
+			result.interfaces[i] = className(pool, indexes, in.readUnsignedShort());
+		}
+		readMembers(in, pool, indexes, result.fields);
+		readMembers(in, pool, indexes, result.methods);
+		for (int i = in.readUnsignedShort(); i > 0; i--) {
+			final String attribute = (String) pool[in.readUnsignedShort()];
+			final int length = in.readInt();
+			if ("SourceFile".equals(attribute)) {
+				result.sourceFile = (String) pool[in.readUnsignedShort()];
+			}
+			else if ("Signature".equals(attribute)) {
+				result.signature = (String) pool[in.readUnsignedShort()];
+			}
+			else if ("RuntimeVisibleAnnotations".equals(attribute) ||
+				"RuntimeInvisibleAnnotations".equals(attribute))
+			{
+				result.annotations = append(result.annotations, readAnnotations(in,
+					pool, indexes));
+			}
+			else skip(in, length);
+		}
+
+		// class references, including those only mentioned in descriptors
+		for (int i = 1; i < count; i++) {
+			if (pool[i] == Boolean.TRUE) {
+				addReferences(result.references, (String) pool[indexes[i]], true);
+			}
+			else if (pool[i] instanceof String) {
+				addReferences(result.references, (String) pool[i], false);
+			}
+		}
+		result.references.remove(result.name);
+		return result;
+	}
+
+	public int getAccess() {
+		return access;
+	}
+
+	/**
+	 * @return the internal name, e.g. <tt>java/lang/Object</tt>
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getSuperName() {
+		return superName;
+	}
+
+	public String[] getInterfaces() {
+		return interfaces;
+	}
+
+	/**
+	 * @return the name of the source file (without the package), or null
+	 */
+	public String getSourceFile() {
+		return sourceFile;
+	}
+
+	public List<Member> getFields() {
+		return fields;
+	}
+
+	public List<Member> getMethods() {
+		return methods;
+	}
+
+	/**
+	 * @return the internal names of all classes referenced by this class
+	 */
+	public Set<String> getReferences() {
+		return references;
+	}
+
+	/**
+	 * Describes the parts of this class that are visible to other projects.
+	 * <p>
+	 * This is the application binary interface (ABI) of the class: its
+	 * hierarchy, generic signature, annotations and all public or protected
+	 * members (including their constant values, declared exceptions and
+	 * annotations). Method bodies and private members do not contribute.
+	 * </p>
+	 *
+	 * @return the description, or null if the class is not public
+	 */
+	public String getAbi() {
+		if ((access & ACC_PUBLIC) == 0) return null;
+		final StringBuilder builder = new StringBuilder();
+		builder.append(access & ABI_ACCESS_MASK).append(' ').append(name);
+		if (superName != null) builder.append(" extends ").append(superName);
+		for (final String iface : interfaces) {
+			builder.append(" implements ").append(iface);
+		}
+		if (signature != null) builder.append(" signature=").append(signature);
+		if (annotations != null) builder.append(' ').append(annotations);
+		builder.append('\n');
+		appendAbi(builder, fields);
+		appendAbi(builder, methods);
+		return builder.toString();
+	}
+
+	private static void appendAbi(final StringBuilder builder,
+		final List<Member> members)
+	{
+		final List<String> list = new ArrayList<String>();
+		for (final Member member : members) {
+			if ((member.access & (ACC_PUBLIC | ACC_PROTECTED)) == 0) continue;
+			final StringBuilder line = new StringBuilder();
+			member.appendAbi(line);
+			list.add(line.toString());
+		}
+		Collections.sort(list);
+		for (final String line : list) {
+			builder.append(line);
+		}
+	}
+
+	private static String readAnnotations(final DataInputStream in,
+		final Object[] pool, final int[] indexes) throws IOException
+	{
+		final StringBuilder builder = new StringBuilder();
+		for (int i = in.readUnsignedShort(); i > 0; i--) {
+			if (builder.length() > 0) builder.append(' ');
+			readAnnotation(in, pool, indexes, builder);
+		}
+		return builder.toString();
+	}
+
+	private static void readAnnotation(final DataInputStream in,
+		final Object[] pool, final int[] indexes, final StringBuilder builder)
+		throws IOException
+	{
+		builder.append('@').append(pool[in.readUnsignedShort()]).append('(');
+		for (int i = in.readUnsignedShort(); i > 0; i--) {
+			builder.append(pool[in.readUnsignedShort()]).append('=');
+			readElementValue(in, pool, indexes, builder);
+			if (i > 1) builder.append(',');
+		}
+		builder.append(')');
+	}
+
+	private static void readElementValue(final DataInputStream in,
+		final Object[] pool, final int[] indexes, final StringBuilder builder)
+		throws IOException
+	{
+		final int tag = in.readUnsignedByte();
+		switch (tag) {
+			case 'e':
+				builder.append(pool[in.readUnsignedShort()]).append('.').append(
+					pool[in.readUnsignedShort()]);
+				break;
+			case 'c':
+				builder.append(pool[in.readUnsignedShort()]).append(".class");
+				break;
+			case '@':
+				readAnnotation(in, pool, indexes, builder);
+				break;
+			case '[':
+				builder.append('{');
+				for (int i = in.readUnsignedShort(); i > 0; i--) {
+					readElementValue(in, pool, indexes, builder);
+					if (i > 1) builder.append(',');
+				}
+				builder.append('}');
+				break;
+			default:
+				// B, C, D, F, I, J, S, Z and s refer to a constant
+				builder.append((char) tag).append(pool[in.readUnsignedShort()]);
+		}
+	}
+
+	private static String append(final String string, final String suffix) {
+		return string == null ? suffix : string + " " + suffix;
+	}
+
+	private static void readMembers(final DataInputStream in,
+		final Object[] pool, final int[] indexes, final List<Member> list)
+		throws IOException
+	{
+		for (int i = in.readUnsignedShort(); i > 0; i--) {
+			final Member member = new Member();
+			member.access = in.readUnsignedShort();
+			member.name = (String) pool[in.readUnsignedShort()];
+			member.descriptor = (String) pool[in.readUnsignedShort()];
+			for (int j = in.readUnsignedShort(); j > 0; j--) {
+				final String attribute = (String) pool[in.readUnsignedShort()];
+				final int length = in.readInt();
+				if ("ConstantValue".equals(attribute)) {
+					final int index = in.readUnsignedShort();
+					// String constants refer to a Utf8 entry via a String entry
+					member.constantValue = pool[index] != null ? pool[index]
+						: pool[indexes[index]];
+				}
+				else if ("Signature".equals(attribute)) {
+					member.signature = (String) pool[in.readUnsignedShort()];
+				}
+				else if ("Exceptions".equals(attribute)) {
+					final StringBuilder builder = new StringBuilder();
+					for (int k = in.readUnsignedShort(); k > 0; k--) {
+						if (builder.length() > 0) builder.append(',');
+						builder.append(className(pool, indexes, in.readUnsignedShort()));
+					}
+					member.exceptions = builder.toString();
+				}
+				else if ("AnnotationDefault".equals(attribute)) {
+					final StringBuilder builder = new StringBuilder();
+					readElementValue(in, pool, indexes, builder);
+					member.annotationDefault = builder.toString();
+				}
+				else if ("RuntimeVisibleAnnotations".equals(attribute) ||
+					"RuntimeInvisibleAnnotations".equals(attribute))
+				{
+					member.annotations = append(member.annotations, readAnnotations(in,
+						pool, indexes));
+				}
+				else skip(in, length);
+			}
+			list.add(member);
+		}
+	}
+
+	private static String className(final Object[] pool, final int[] indexes,
+		final int index)
+	{
+		if (index == 0) return null;
+		return (String) pool[indexes[index]];
+	}
+
+	/**
+	 * Extracts the class names from a class name, array type or descriptor.
+	 * <p>
+	 * Other strings may yield spurious names, which is harmless: they simply do
+	 * not match any class.
+	 * </p>
+	 */
+	private static void addReferences(final Set<String> result,
+		final String string, final boolean isClassName)
+	{
+		if (isClassName && string.charAt(0) != '[') {
+			result.add(string);
+			return;
+		}
+		final int length = string.length();
+		for (int i = 0; i < length; i++) {
+			if (string.charAt(i) != 'L') continue;
+			int end = i + 1;
+			while (end < length) {
+				final char c = string.charAt(end);
+				if (c == ';' || c == '<') break;
+				if (c != '/' && !Character.isJavaIdentifierPart(c)) {
+					end = -1;
+					break;
+				}
+				end++;
+			}
+			if (end < 0 || end == length || end == i + 1) continue;
+			result.add(string.substring(i + 1, end));
+			i = end;
+		}
+	}
+
+	private static void skip(final DataInputStream in, final int length)
+		throws IOException
+	{
+		int remaining = length;
+		while (remaining > 0) {
+			final int skipped = in.skipBytes(remaining);
+			if (skipped <= 0) throw new IOException("Unexpected end of file");
+			remaining -= skipped;
+		}
+	}
+}
@@ -42,6 +42,8 @@ public class Coordinate {
 	protected String groupId, artifactId, version, systemPath, classifier, scope,
 			snapshotVersion;
 	protected boolean optional;
+	private Version parsedVersion;
+	private ArtifactKey artifactKey;
 
 	// entries look like this: <groupId>:<artifactId>
 	protected Set<String> exclusions;
@@ -68,8 +70,8 @@ public class Coordinate {
 		final String systemPath, final String classifier,
 		final Set<String> exclusions)
 	{
-		this.groupId = normalize(groupId);
-		this.artifactId = normalize(artifactId);
+		this.groupId = ArtifactKey.intern(normalize(groupId));
+		this.artifactId = ArtifactKey.intern(normalize(artifactId));
 		this.version = normalize(version);
 		this.scope = normalize(scope);
 		this.optional = optional;
@@ -113,8 +115,20 @@ public class Coordinate {
 	}
 
 	public String getKey() {
-		return groupId + ">" + artifactId + (classifier == null ? "" : ">" +
-			classifier);
+		return getArtifactKey().toString();
+	}
+
+	/**
+	 * Returns the canonical key identifying the artifact.
+	 *
+	 * @return the key, made up of the groupId, artifactId and classifier
+	 */
+	public ArtifactKey getArtifactKey() {
+		ArtifactKey result = artifactKey;
+		if (result == null || !result.matches(groupId, artifactId, classifier)) {
+			result = artifactKey = ArtifactKey.get(groupId, artifactId, classifier);
+		}
+		return result;
 	}
 
 	public void setSnapshotVersion(final String version) {
@@ -137,6 +151,21 @@ public class Coordinate {
 		return snapshotVersion != null ? snapshotVersion : version;
 	}
 
+	/**
+	 * Returns the version, parsed for fast comparison.
+	 *
+	 * @return the version, or null if no version was specified
+	 */
+	public Version getParsedVersion() {
+		final String version = getVersion();
+		if (version == null) return null;
+		Version result = parsedVersion;
+		if (result == null || !result.toString().equals(version)) {
+			result = parsedVersion = new Version(version);
+		}
+		return result;
+	}
+
 	@Override
 	public String toString() {
 		String extra = "";
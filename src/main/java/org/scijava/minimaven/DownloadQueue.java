@@ -0,0 +1,228 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fetches artifacts in the background.
+ * <p>
+ * Only files that are not needed for the dependency resolution itself (i.e.
+ * the .jar files, but not the .pom files) are queued here: POMs are still
+ * downloaded and verified synchronously before they are parsed. The number of
+ * concurrent connections to the same host is limited.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class DownloadQueue {
+
+	protected final int threads, connectionsPerHost;
+	private ExecutorService executor;
+	private final Map<String, Semaphore> hosts =
+		new HashMap<String, Semaphore>();
+	private final Map<File, Future<File>> pending =
+		new LinkedHashMap<File, Future<File>>();
+
+	public DownloadQueue(final int threads, final int connectionsPerHost) {
+		this.threads = threads;
+		this.connectionsPerHost = Math.max(1, connectionsPerHost);
+	}
+
+	/**
+	 * Queues a download.
+	 * <p>
+	 * If the queue is configured to use a single thread, the download is
+	 * performed immediately.
+	 * </p>
+	 *
+	 * @param file the file that will be written by the download
+	 * @param download the download
+	 * @throws IOException
+	 */
+	public void submit(final File file, final Callable<File> download)
+		throws IOException
+	{
+		if (threads <= 1) {
+			call(download);
+			return;
+		}
+		synchronized (this) {
+			if (pending.containsKey(file)) return;
+			if (executor == null) {
+				executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+					private int counter;
+
+					@Override
+					public synchronized Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "MiniMaven-download-" +
+							++counter);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			pending.put(file, executor.submit(download));
+		}
+	}
+
+	/**
+	 * Determines whether a file is still being downloaded.
+	 *
+	 * @param file the file
+	 * @return whether the file is queued (or being downloaded)
+	 */
+	public synchronized boolean isPending(final File file) {
+		final Future<File> future = pending.get(file);
+		return future != null && !future.isDone();
+	}
+
+	/**
+	 * Waits for the download of a file to finish, if it is queued.
+	 * <p>
+	 * Failures are not reported here, but by {@link #await()}.
+	 * </p>
+	 *
+	 * @param file the file
+	 */
+	public void waitFor(final File file) {
+		final Future<File> future;
+		synchronized (this) {
+			future = pending.get(file);
+		}
+		if (future == null) return;
+		try {
+			future.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (final ExecutionException e) {
+			// reported by await()
+		}
+	}
+
+	/**
+	 * Waits for all queued downloads to finish.
+	 *
+	 * @throws IOException if any of the downloads failed
+	 */
+	public void await() throws IOException {
+		final List<Map.Entry<File, Future<File>>> list;
+		synchronized (this) {
+			if (pending.isEmpty()) return;
+			list = new ArrayList<Map.Entry<File, Future<File>>>(pending.entrySet());
+		}
+		IOException failure = null;
+		for (final Map.Entry<File, Future<File>> entry : list) {
+			try {
+				entry.getValue().get();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (final ExecutionException e) {
+				if (failure == null) {
+					failure = new IOException("Could not download " + entry.getKey(), e
+						.getCause());
+				}
+			}
+			synchronized (this) {
+				pending.remove(entry.getKey());
+			}
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Waits until a connection to the given host may be opened.
+	 * <p>
+	 * Every call must be paired with a call to {@link #release(URL)}.
+	 * </p>
+	 *
+	 * @param url the URL to connect to
+	 */
+	public void acquire(final URL url) {
+		try {
+			getSemaphore(url).acquire();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void release(final URL url) {
+		getSemaphore(url).release();
+	}
+
+	private synchronized Semaphore getSemaphore(final URL url) {
+		final String host = url.getHost() + ":" + url.getPort();
+		Semaphore semaphore = hosts.get(host);
+		if (semaphore == null) {
+			semaphore = new Semaphore(connectionsPerHost, true);
+			hosts.put(host, semaphore);
+		}
+		return semaphore;
+	}
+
+	private static void call(final Callable<File> download) throws IOException {
+		try {
+			download.call();
+		}
+		catch (final IOException e) {
+			throw e;
+		}
+		catch (final RuntimeException e) {
+			throw e;
+		}
+		catch (final Exception e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches files via {@link HttpURLConnection}.
+ * <p>
+ * The JDK keeps connections (and their TLS sessions) alive and reuses them for
+ * subsequent requests to the same host, but only if every response body,
+ * including the bodies of error responses, is read completely and closed.
+ * This class takes care of that, asks for compressed POMs and metadata, and
+ * applies timeouts so that a stalled connection does not hang the build.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class HttpTransport implements Transport {
+
+	private final static String USER_AGENT = "MiniMaven/2.0.0-SNAPSHOT";
+
+	private final int timeout;
+
+	/**
+	 * @param timeout the connect and read timeout in milliseconds, or 0 to wait
+	 *          forever
+	 */
+	public HttpTransport(final int timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public InputStream open(final URL url, final Properties validators)
+		throws IOException
+	{
+		final URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		if (!(connection instanceof HttpURLConnection)) {
+			return connection.getInputStream();
+		}
+
+		final HttpURLConnection http = (HttpURLConnection) connection;
+		http.setRequestProperty("User-Agent", USER_AGENT);
+		final String path = url.getPath();
+		if (path.endsWith(".pom") || path.endsWith(".xml")) {
+			http.setRequestProperty("Accept-Encoding", "gzip");
+		}
+		if (validators != null && !validators.isEmpty()) {
+			final String etag = validators.getProperty("ETag");
+			if (etag != null) http.setRequestProperty("If-None-Match", etag);
+			final String lastModified = validators.getProperty("Last-Modified");
+			if (lastModified != null) {
+				http.setRequestProperty("If-Modified-Since", lastModified);
+			}
+		}
+
+		final int status = http.getResponseCode();
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			drain(http.getInputStream());
+			return null;
+		}
+		if (status >= 400) {
+			drain(http.getErrorStream());
+			if (status == HttpURLConnection.HTTP_NOT_FOUND ||
+				status == HttpURLConnection.HTTP_GONE)
+			{
+				throw new FileNotFoundException(url.toString());
+			}
+			throw new IOException("Server returned HTTP response code: " + status +
+				" for URL: " + url);
+		}
+
+		if (validators != null) {
+			validators.clear();
+			for (final String header : new String[] { "ETag", "Last-Modified" }) {
+				final String value = http.getHeaderField(header);
+				if (value != null) validators.setProperty(header, value);
+			}
+		}
+		final InputStream in = http.getInputStream();
+		if ("gzip".equalsIgnoreCase(http.getContentEncoding())) {
+			return new GZIPInputStream(in);
+		}
+		return in;
+	}
+
+	/**
+	 * Reads a response body completely so that the connection can be reused.
+	 */
+	private static void drain(final InputStream in) {
+		if (in == null) return;
+		try {
+			try {
+				final byte[] buffer = new byte[8192];
+				while (in.read(buffer) >= 0) {
+					/* do nothing */
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (final IOException e) {
+			// the connection will not be reused
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Records checksums of the inputs of a build.
+ * <p>
+ * Modification times are unreliable: checking out a different branch and
+ * switching back, or restoring a build cache, touches files without changing
+ * their contents, and clock skew on network file systems can hide changes.
+ * This class checksums the inputs instead: sources, resources, POMs, the class
+ * path and the interfaces of the dependencies. To keep this fast, the
+ * checksum of a file is only recomputed when its size or modification time
+ * changed.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class InputManifest {
+
+	private final static String HEADER = "# MiniMaven input manifest v1";
+
+	private final File file;
+	private final Map<String, Entry> previous = new TreeMap<String, Entry>();
+	private final Map<String, Entry> current = new TreeMap<String, Entry>();
+	private String jar;
+	private boolean dirty;
+
+	private static class Entry {
+
+		private final long length, lastModified, checksum;
+
+		private Entry(final long length, final long lastModified,
+			final long checksum)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+	}
+
+	private InputManifest(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the manifest recorded by the previous build.
+	 * <p>
+	 * If the file does not exist or cannot be parsed, the manifest is empty.
+	 * </p>
+	 */
+	public static InputManifest load(final File file) {
+		final InputManifest result = new InputManifest(file);
+		if (!file.exists()) return result;
+		try {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				if (!HEADER.equals(reader.readLine())) return result;
+				result.jar = reader.readLine();
+				for (;;) {
+					final String line = reader.readLine();
+					if (line == null) break;
+					final String[] list = line.split("\t", 4);
+					result.previous.put(list[3], new Entry(Long.parseLong(list[0]), Long
+						.parseLong(list[1]), Long.parseLong(list[2], 16)));
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (final RuntimeException e) {
+			result.previous.clear();
+		}
+		catch (final IOException e) {
+			result.previous.clear();
+		}
+		return result;
+	}
+
+	public boolean isEmpty() {
+		return previous.isEmpty();
+	}
+
+	/**
+	 * Adds a file, or all files in a directory, to the current inputs.
+	 *
+	 * @param key the prefix for the keys of the file(s)
+	 * @param file the file or directory
+	 */
+	public void add(final String key, final File file) throws IOException {
+		if (file.isDirectory()) {
+			final TreeSnapshot snapshot = TreeSnapshot.scan(file);
+			for (final String path : snapshot.getPaths()) {
+				add(key + "/" + path, snapshot.getFile(path), snapshot.getLength(path),
+					snapshot.getLastModified(path));
+			}
+			return;
+		}
+		if (!file.isFile()) return;
+		add(key, file, file.length(), file.lastModified());
+	}
+
+	private void add(final String key, final File file, final long length,
+		final long lastModified) throws IOException
+	{
+		final Entry entry = previous.get(key);
+		if (entry != null && entry.length == length &&
+			entry.lastModified == lastModified)
+		{
+			current.put(key, entry);
+			return;
+		}
+		current.put(key, new Entry(length, lastModified, checksum(file)));
+		dirty = true;
+	}
+
+	/**
+	 * Computes the checksum of a file's contents.
+	 *
+	 * @param file the file
+	 * @return the CRC32 of the contents
+	 */
+	public static long checksum(final File file) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[65536];
+		final InputStream in = new FileInputStream(file);
+		try {
+			for (;;) {
+				final int count = in.read(buffer);
+				if (count < 0) break;
+				crc.update(buffer, 0, count);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Adds an input that is not a file, e.g. the class path.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void add(final String key, final String value)
+		throws UnsupportedEncodingException
+	{
+		final CRC32 crc = new CRC32();
+		if (value != null) crc.update(value.getBytes("UTF-8"));
+		current.put(key, new Entry(-1, value == null ? 0 : 1, crc.getValue()));
+	}
+
+	/**
+	 * Determines whether the contents of all inputs are the same as in the
+	 * previous build.
+	 */
+	public boolean isUpToDate() {
+		if (previous.size() != current.size()) return false;
+		for (final Map.Entry<String, Entry> entry : current.entrySet()) {
+			final Entry other = previous.get(entry.getKey());
+			if (other == null || other.checksum != entry.getValue().checksum ||
+				other.length != entry.getValue().length)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lists the inputs that were added or changed since the previous build.
+	 *
+	 * @param prefix the prefix of the keys to consider
+	 * @return the keys, stripped of the prefix
+	 */
+	public Set<String> getChanged(final String prefix) {
+		final Set<String> result = new TreeSet<String>();
+		for (final Map.Entry<String, Entry> entry : current.entrySet()) {
+			final String key = entry.getKey();
+			if (!key.startsWith(prefix)) continue;
+			final Entry other = previous.get(key);
+			if (other == null || other.checksum != entry.getValue().checksum ||
+				other.length != entry.getValue().length)
+			{
+				result.add(key.substring(prefix.length()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Determines whether the .jar file was built from the current inputs.
+	 */
+	public boolean isJarUpToDate(final File jar) {
+		return jar.exists() && getStamp(jar).equals(this.jar);
+	}
+
+	/**
+	 * Records the .jar file built from the current inputs.
+	 *
+	 * @param jar the .jar file, or null if no .jar file was built
+	 */
+	public void setJar(final File jar) {
+		this.jar = jar == null ? "" : getStamp(jar);
+		dirty = true;
+	}
+
+	/**
+	 * Records the stat data of inputs whose checksums had to be recomputed.
+	 * <p>
+	 * This is used when the inputs are up-to-date, so that the files need not
+	 * be checksummed again in the next build.
+	 * </p>
+	 */
+	public void saveStatData() throws IOException {
+		if (dirty) save();
+	}
+
+	/**
+	 * Records the current inputs.
+	 */
+	public void save() throws IOException {
+		file.getParentFile().mkdirs();
+		final PrintWriter writer = new PrintWriter(new FileWriter(file));
+		try {
+			writer.println(HEADER);
+			writer.println(jar == null ? "" : jar);
+			for (final Map.Entry<String, Entry> entry : current.entrySet()) {
+				final Entry value = entry.getValue();
+				writer.println(value.length + "\t" + value.lastModified + "\t" + Long
+					.toHexString(value.checksum) + "\t" + entry.getKey());
+			}
+		}
+		finally {
+			writer.close();
+		}
+		dirty = false;
+	}
+
+	private static String getStamp(final File file) {
+		return file.length() + ":" + file.lastModified();
+	}
+}
@@ -36,6 +36,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +54,8 @@ public class JarClassLoader extends ClassLoader {
 	List<String> jarFilesNames;
 	List<JarFile> jarFilesObjects;
 	HashMap<String, Class<?>> cache;
+	// maps entry names to the index of the last-added .jar file containing them
+	private Map<String, Integer> entries;
 
 	JarClassLoader() {
 		super(Thread.currentThread().getContextClassLoader());
@@ -77,15 +80,47 @@ public class JarClassLoader extends ClassLoader {
 		jarFilesMap.put(path, jar);
 		jarFilesNames.add(path);
 		jarFilesObjects.add(jar);
+		if (entries != null) index(jarFilesObjects.size() - 1);
+	}
+
+	/**
+	 * Determines which .jar file provides a given entry.
+	 * <p>
+	 * The index of the entry names is built upon first use, and maintained when
+	 * .jar files are added; if several .jar files contain the same entry, the
+	 * last-added one wins.
+	 * </p>
+	 *
+	 * @param name the name of the entry
+	 * @return the index of the .jar file, or -1 if none contains the entry
+	 */
+	protected synchronized int findJar(final String name) {
+		if (entries == null) {
+			entries = new HashMap<String, Integer>();
+			for (int i = 0; i < jarFilesObjects.size(); i++) {
+				index(i);
+			}
+		}
+		Integer result = entries.get(name);
+		// like JarFile#getEntry(), find directories without trailing slash
+		if (result == null && !name.endsWith("/")) result = entries.get(name +
+			"/");
+		return result == null ? -1 : result.intValue();
+	}
+
+	private void index(final int i) {
+		final Integer value = i;
+		final Enumeration<JarEntry> iter = jarFilesObjects.get(i).entries();
+		while (iter.hasMoreElements()) {
+			entries.put(iter.nextElement().getName(), value);
+		}
 	}
 
 	@Override
 	public URL getResource(final String name) {
-		final int n = jarFilesNames.size();
-		for (int i = n - 1; i >= 0; --i) {
-			final JarFile jar = jarFilesObjects.get(i);
+		final int i = findJar(name);
+		if (i >= 0) {
 			final String file = jarFilesNames.get(i);
-			if (jar.getEntry(name) == null) continue;
 			final String url = "file:///" + file.replace('\\', '/') + "!/" + name;
 			try {
 				return new URL("jar", "", url);
@@ -105,8 +140,8 @@ public class JarClassLoader extends ClassLoader {
 	public InputStream getResourceAsStream(final String name,
 		final boolean nonSystemOnly)
 	{
-		final int n = jarFilesNames.size();
-		for (int i = n - 1; i >= 0; --i) {
+		// if the last-added .jar file fails, try the older ones
+		for (int i = findJar(name); i >= 0; --i) {
 			final JarFile jar = jarFilesObjects.get(i);
 			final JarEntry entry = jar.getJarEntry(name);
 			if (entry == null) continue;
@@ -0,0 +1,683 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes .jar files, compressing the entries in parallel.
+ * <p>
+ * The entries are collected first, and written when the writer is closed: the
+ * files are compressed by a pool of threads, and the compressed data is written
+ * in a deterministic order (the manifest first, as required by
+ * {@link java.util.jar.JarInputStream}, and all other entries sorted by name).
+ * A compression level of 0 stores the entries without compressing them, which
+ * is the fastest option for development builds.
+ * </p>
+ * <p>
+ * Only small entries are compressed in memory, and only as many of them as fit
+ * into a fixed budget are in flight at any time. Larger entries are streamed
+ * from disk by the thread writing the .jar file.
+ * </p>
+ * <p>
+ * In incremental mode, the entries of an existing .jar file whose size and
+ * checksum match the respective file are copied without inflating and
+ * deflating them again, as long as the .jar file was written with the same
+ * compression level.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class JarWriter implements Closeable {
+
+	private final static String MANIFEST = "META-INF/MANIFEST.MF";
+	private final static int LOCAL_HEADER = 0x04034b50,
+			CENTRAL_HEADER = 0x02014b50, END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	// the file names are encoded as UTF-8
+	private final static int FLAGS = 0x0800;
+	private final static String COMMENT_PREFIX = "MiniMaven level=";
+	// entries larger than this are streamed rather than compressed in memory
+	private final static long STREAMING_THRESHOLD = 1l << 20;
+	// how many bytes of pending entries may be held in memory
+	private final static long PENDING_BYTES = 32l << 20;
+
+	private final File file;
+	private final int level, threads;
+	private final ExecutorService executor;
+	private final Map<String, File> entries = new TreeMap<String, File>();
+	private boolean incremental;
+	private Map<String, PreviousEntry> previous;
+	private RandomAccessFile previousFile;
+
+	/**
+	 * Creates a .jar writer.
+	 *
+	 * @param file the .jar file to write
+	 * @param level the compression level, 0 (no compression) to 9 (best), or
+	 *          -1 for the default level
+	 * @param threads the number of threads to compress with
+	 */
+	public JarWriter(final File file, final int level, final int threads) {
+		this.file = file;
+		this.level = level;
+		this.threads = Math.max(1, threads);
+		executor = null;
+	}
+
+	/**
+	 * Creates a .jar writer compressing the entries in an existing thread pool.
+	 * <p>
+	 * The pool is not shut down when the writer is closed, so that it can be
+	 * shared by all .jar files of a build.
+	 * </p>
+	 *
+	 * @param file the .jar file to write
+	 * @param level the compression level, 0 (no compression) to 9 (best), or
+	 *          -1 for the default level
+	 * @param executor the thread pool, or null to compress in the current thread
+	 */
+	public JarWriter(final File file, final int level,
+		final ExecutorService executor)
+	{
+		this.file = file;
+		this.level = level;
+		threads = 1;
+		this.executor = executor;
+	}
+
+	/**
+	 * Determines whether to reuse the compressed entries of an existing .jar
+	 * file.
+	 *
+	 * @param incremental whether to reuse unchanged entries
+	 */
+	public void setIncremental(final boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Adds a file to the .jar.
+	 *
+	 * @param name the path of the entry
+	 * @param file the file to add
+	 */
+	public void add(final String name, final File file) {
+		entries.put(name, file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		final List<String> names = new ArrayList<String>();
+		if (entries.containsKey(MANIFEST)) names.add(MANIFEST);
+		for (final String name : entries.keySet()) {
+			if (!name.equals(MANIFEST)) names.add(name);
+		}
+
+		final ExecutorService ownExecutor = executor != null || threads < 2
+			? null : Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+				private int counter;
+
+				@Override
+				public synchronized Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "MiniMaven-jar-" +
+						++counter);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		final byte[] comment = (COMMENT_PREFIX + level).getBytes("UTF-8");
+		if (incremental && file.exists()) readPrevious(comment);
+		final ExecutorService executor = ownExecutor != null ? ownExecutor
+			: this.executor;
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream fileOut = new FileOutputStream(tmp);
+		final OutputStream out = new BufferedOutputStream(fileOut, 65536);
+		final LinkedList<Future<Entry>> pending = new LinkedList<Future<Entry>>();
+		boolean success = false;
+		try {
+			final ByteArrayOutputStream central = new ByteArrayOutputStream();
+			long offset = 0, pendingBytes = 0;
+			for (final String name : names) {
+				final File entryFile = entries.get(name);
+				final long fileSize = entryFile.length();
+				if (fileSize > STREAMING_THRESHOLD) {
+					// the entries need to be written in order
+					while (!pending.isEmpty()) {
+						offset = write(out, central, get(pending.removeFirst()), offset);
+					}
+					pendingBytes = 0;
+					offset = stream(out, fileOut.getChannel(), central, name, entryFile,
+						offset);
+					continue;
+				}
+				final Entry entry = new Entry(name, entryFile, fileSize);
+				if (executor == null) {
+					offset = write(out, central, entry.call(), offset);
+					continue;
+				}
+				// limit the amount of data held in memory
+				while (!pending.isEmpty() && pendingBytes + fileSize > PENDING_BYTES) {
+					final Entry done = get(pending.removeFirst());
+					pendingBytes -= done.reserved;
+					offset = write(out, central, done, offset);
+				}
+				pending.add(executor.submit(entry));
+				pendingBytes += fileSize;
+			}
+			while (!pending.isEmpty()) {
+				offset = write(out, central, get(pending.removeFirst()), offset);
+			}
+			if (names.size() > 0xffff || offset + central.size() > 0xffffffffl) {
+				throw new IOException("Too large for a .jar file without ZIP64 " +
+					"extensions: " + file);
+			}
+			central.writeTo(out);
+			writeInt(out, END_OF_CENTRAL_DIRECTORY);
+			writeShort(out, 0);
+			writeShort(out, 0);
+			writeShort(out, names.size());
+			writeShort(out, names.size());
+			writeInt(out, central.size());
+			writeInt(out, (int) offset);
+			writeShort(out, comment.length);
+			out.write(comment);
+			success = true;
+		}
+		finally {
+			out.close();
+			for (final Future<Entry> future : pending) {
+				future.cancel(true);
+			}
+			if (ownExecutor != null) ownExecutor.shutdownNow();
+			if (previousFile != null) previousFile.close();
+			if (!success) tmp.delete();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not write " + file);
+			}
+		}
+	}
+
+	/**
+	 * Reads the central directory of the existing .jar file.
+	 * <p>
+	 * If the file was not written by this class with the same compression
+	 * level, no entries are reused.
+	 * </p>
+	 *
+	 * @param comment the archive comment identifying the compression level
+	 */
+	private void readPrevious(final byte[] comment) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final long end = raf.length() - 22 - comment.length;
+		if (end < 0) {
+			raf.close();
+			return;
+		}
+		final byte[] buffer = new byte[22 + comment.length];
+		raf.seek(end);
+		raf.readFully(buffer);
+		if (readInt(buffer, 0) != END_OF_CENTRAL_DIRECTORY ||
+			readShort(buffer, 20) != comment.length || !Arrays.equals(comment,
+				Arrays.copyOfRange(buffer, 22, buffer.length)))
+		{
+			raf.close();
+			return;
+		}
+		final int count = readShort(buffer, 10);
+		final byte[] central = new byte[readInt(buffer, 12)];
+		raf.seek(readInt(buffer, 16) & 0xffffffffl);
+		raf.readFully(central);
+
+		final Map<String, PreviousEntry> result =
+			new HashMap<String, PreviousEntry>();
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			if (readInt(central, offset) != CENTRAL_HEADER) {
+				raf.close();
+				return;
+			}
+			final PreviousEntry entry = new PreviousEntry();
+			entry.method = readShort(central, offset + 10);
+			entry.crc = readInt(central, offset + 16) & 0xffffffffl;
+			entry.length = readInt(central, offset + 20);
+			entry.size = readInt(central, offset + 24);
+			final int nameLength = readShort(central, offset + 28);
+			final int extraLength = readShort(central, offset + 30);
+			final int commentLength = readShort(central, offset + 32);
+			entry.offset = readInt(central, offset + 42) & 0xffffffffl;
+			final String name = new String(central, offset + 46, nameLength,
+				"UTF-8");
+			result.put(name, entry);
+			offset += 46 + nameLength + extraLength + commentLength;
+		}
+		previous = result;
+		previousFile = raf;
+	}
+
+	/**
+	 * Reads the compressed data of an unchanged entry of the existing .jar
+	 * file.
+	 */
+	private synchronized byte[] readPrevious(final PreviousEntry entry)
+		throws IOException
+	{
+		seekPrevious(entry);
+		final byte[] result = new byte[entry.length];
+		previousFile.readFully(result);
+		return result;
+	}
+
+	/**
+	 * Copies the compressed data of an unchanged entry of the existing .jar
+	 * file.
+	 */
+	private synchronized void copyPrevious(final PreviousEntry entry,
+		final OutputStream out, final byte[] buffer) throws IOException
+	{
+		seekPrevious(entry);
+		for (long remaining = entry.length & 0xffffffffl; remaining > 0;) {
+			final int count = (int) Math.min(remaining, buffer.length);
+			previousFile.readFully(buffer, 0, count);
+			out.write(buffer, 0, count);
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Positions the existing .jar file at the compressed data of an entry.
+	 */
+	private void seekPrevious(final PreviousEntry entry) throws IOException {
+		final byte[] header = new byte[30];
+		previousFile.seek(entry.offset);
+		previousFile.readFully(header);
+		if (readInt(header, 0) != LOCAL_HEADER) {
+			throw new IOException("Corrupt entry in " + file);
+		}
+		previousFile.seek(entry.offset + 30 + readShort(header, 26) + readShort(
+			header, 28));
+	}
+
+	/**
+	 * Returns the entry of the existing .jar file that can be reused as-is.
+	 *
+	 * @param name the path of the entry
+	 * @param size the size of the uncompressed data
+	 * @param crc the checksum of the uncompressed data
+	 * @return the entry, or null if it changed (or does not exist)
+	 */
+	private PreviousEntry getUnchanged(final String name, final long size,
+		final long crc)
+	{
+		final PreviousEntry entry = previous == null ? null : previous.get(name);
+		if (entry == null || (entry.size & 0xffffffffl) != size || entry.crc != crc ||
+			(entry.method != 0 && entry.method != Deflater.DEFLATED))
+		{
+			return null;
+		}
+		return entry;
+	}
+
+	private static int readShort(final byte[] buffer, final int offset) {
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8);
+	}
+
+	private static int readInt(final byte[] buffer, final int offset) {
+		return readShort(buffer, offset) | (readShort(buffer, offset + 2) << 16);
+	}
+
+	private static Entry get(final Future<Entry> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (final InterruptedException e) {
+			throw new IOException(e);
+		}
+		catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static long write(final OutputStream out,
+		final ByteArrayOutputStream central, final Entry entry, final long offset)
+		throws IOException
+	{
+		final byte[] name = entry.name.getBytes("UTF-8");
+		final int method = entry.compressed ? Deflater.DEFLATED : 0;
+		writeLocalHeader(out, name, method, entry.time, entry.crc, entry.length,
+			entry.size);
+		out.write(entry.data, 0, entry.length);
+		writeCentralHeader(central, name, method, entry.time, entry.crc,
+			entry.length, entry.size, offset);
+		return offset + 30 + name.length + entry.length;
+	}
+
+	/**
+	 * Writes a large entry without holding it in memory.
+	 * <p>
+	 * The file is read twice: once to determine whether the entry changed, and
+	 * once to copy or compress it. The compressed size is patched into the
+	 * local header afterwards.
+	 * </p>
+	 */
+	private long stream(final OutputStream out, final FileChannel channel,
+		final ByteArrayOutputStream central, final String entryName,
+		final File file, final long offset) throws IOException
+	{
+		final byte[] buffer = new byte[65536];
+		final CRC32 checksum = new CRC32();
+		long size = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			for (;;) {
+				final int count = in.read(buffer);
+				if (count < 0) break;
+				checksum.update(buffer, 0, count);
+				size += count;
+			}
+		}
+		finally {
+			in.close();
+		}
+		if (size > 0xffffffffl) {
+			throw new IOException("Too large for a .jar file without ZIP64 " +
+				"extensions: " + file);
+		}
+		final long crc = checksum.getValue();
+		final int time = toDOSTime(file.lastModified());
+		final byte[] name = entryName.getBytes("UTF-8");
+
+		final PreviousEntry unchanged = getUnchanged(entryName, size, crc);
+		final int method;
+		long length = 0;
+		if (unchanged != null) {
+			method = unchanged.method;
+			length = unchanged.length & 0xffffffffl;
+			writeLocalHeader(out, name, method, time, crc, length, size);
+			copyPrevious(unchanged, out, buffer);
+		}
+		else if (level == 0) {
+			method = 0;
+			length = size;
+			writeLocalHeader(out, name, method, time, crc, length, size);
+			in = new FileInputStream(file);
+			try {
+				for (long remaining = size; remaining > 0;) {
+					final int count = in.read(buffer, 0, (int) Math.min(remaining,
+						buffer.length));
+					if (count < 0) throw new IOException("Short read: " + file);
+					out.write(buffer, 0, count);
+					remaining -= count;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		else {
+			method = Deflater.DEFLATED;
+			writeLocalHeader(out, name, method, time, crc, 0, size);
+			final byte[] output = new byte[65536];
+			final Deflater deflater = new Deflater(level, true);
+			in = new FileInputStream(file);
+			try {
+				for (long remaining = size;;) {
+					final int count = remaining == 0 ? -1 : in.read(buffer, 0,
+						(int) Math.min(remaining, buffer.length));
+					if (count < 0) {
+						if (remaining > 0) throw new IOException("Short read: " + file);
+						deflater.finish();
+					}
+					else {
+						deflater.setInput(buffer, 0, count);
+						remaining -= count;
+					}
+					while (count < 0 ? !deflater.finished() : !deflater.needsInput()) {
+						final int deflated = deflater.deflate(output);
+						out.write(output, 0, deflated);
+						length += deflated;
+					}
+					if (count < 0) break;
+				}
+			}
+			finally {
+				in.close();
+				deflater.end();
+			}
+			// patch the compressed size into the local header
+			out.flush();
+			final ByteBuffer patch = ByteBuffer.allocate(4).order(
+				ByteOrder.LITTLE_ENDIAN);
+			patch.putInt(0, (int) length);
+			for (long position = offset + 18; patch.hasRemaining();) {
+				position += channel.write(patch, position);
+			}
+		}
+		writeCentralHeader(central, name, method, time, crc, length, size, offset);
+		return offset + 30 + name.length + length;
+	}
+
+	private static void writeLocalHeader(final OutputStream out,
+		final byte[] name, final int method, final int time, final long crc,
+		final long length, final long size) throws IOException
+	{
+		writeInt(out, LOCAL_HEADER);
+		writeShort(out, method == 0 ? 10 : 20);
+		writeShort(out, FLAGS);
+		writeShort(out, method);
+		writeInt(out, time);
+		writeInt(out, (int) crc);
+		writeInt(out, (int) length);
+		writeInt(out, (int) size);
+		writeShort(out, name.length);
+		writeShort(out, 0);
+		out.write(name);
+	}
+
+	private static void writeCentralHeader(final OutputStream central,
+		final byte[] name, final int method, final int time, final long crc,
+		final long length, final long size, final long offset) throws IOException
+	{
+		writeInt(central, CENTRAL_HEADER);
+		writeShort(central, 20);
+		writeShort(central, method == 0 ? 10 : 20);
+		writeShort(central, FLAGS);
+		writeShort(central, method);
+		writeInt(central, time);
+		writeInt(central, (int) crc);
+		writeInt(central, (int) length);
+		writeInt(central, (int) size);
+		writeShort(central, name.length);
+		writeShort(central, 0);
+		writeShort(central, 0);
+		writeShort(central, 0);
+		writeShort(central, 0);
+		writeInt(central, 0);
+		writeInt(central, (int) offset);
+		central.write(name);
+	}
+
+	private static void writeShort(final OutputStream out, final int value)
+		throws IOException
+	{
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+	}
+
+	private static void writeInt(final OutputStream out, final int value)
+		throws IOException
+	{
+		writeShort(out, value & 0xffff);
+		writeShort(out, (value >> 16) & 0xffff);
+	}
+
+	/**
+	 * Converts a time stamp into the MS-DOS format used by .zip files.
+	 */
+	private static int toDOSTime(final long time) {
+		final Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		final int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) return (1 << 21) | (1 << 16);
+		return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) |
+			(calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(
+				Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) |
+			(calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	/**
+	 * An entry of the existing .jar file.
+	 */
+	private static class PreviousEntry {
+
+		private int method, length, size;
+		private long crc, offset;
+	}
+
+	/**
+	 * An entry, compressed by a worker thread.
+	 */
+	private class Entry implements Callable<Entry> {
+
+		private final String name;
+		private final File file;
+		// the number of bytes accounted for in the budget of pending entries
+		private final long reserved;
+		private byte[] data;
+		private int size, length, time;
+		private long crc;
+		private boolean compressed;
+
+		private Entry(final String name, final File file, final long reserved) {
+			this.name = name;
+			this.file = file;
+			this.reserved = reserved;
+		}
+
+		@Override
+		public Entry call() throws IOException {
+			final long fileSize = file.length();
+			if (fileSize > Integer.MAX_VALUE) {
+				throw new IOException("Too large for a .jar file: " + file);
+			}
+			final byte[] buffer = new byte[(int) fileSize];
+			final InputStream in = new FileInputStream(file);
+			try {
+				int offset = 0;
+				while (offset < buffer.length) {
+					final int count = in.read(buffer, offset, buffer.length - offset);
+					if (count < 0) throw new IOException("Short read: " + file);
+					offset += count;
+				}
+			}
+			finally {
+				in.close();
+			}
+			time = toDOSTime(file.lastModified());
+			size = buffer.length;
+			final CRC32 checksum = new CRC32();
+			checksum.update(buffer, 0, size);
+			crc = checksum.getValue();
+
+			final PreviousEntry unchanged = getUnchanged(name, size, crc);
+			if (unchanged != null) {
+				data = readPrevious(unchanged);
+				length = unchanged.length;
+				compressed = unchanged.method == Deflater.DEFLATED;
+				return this;
+			}
+
+			data = buffer;
+			length = size;
+			if (level == 0 || size == 0) return this;
+			final Deflater deflater = new Deflater(level, true);
+			try {
+				deflater.setInput(buffer, 0, size);
+				deflater.finish();
+				byte[] output = new byte[Math.max(64, size + size / 1000 + 64)];
+				int outputLength = 0;
+				while (!deflater.finished()) {
+					if (outputLength == output.length) {
+						final byte[] grown = new byte[output.length * 2];
+						System.arraycopy(output, 0, grown, 0, outputLength);
+						output = grown;
+					}
+					outputLength += deflater.deflate(output, outputLength,
+						output.length - outputLength);
+				}
+				// store incompressible data as-is
+				if (outputLength < size) {
+					data = output;
+					length = outputLength;
+					compressed = true;
+				}
+			}
+			finally {
+				deflater.end();
+			}
+			return this;
+		}
+	}
+}
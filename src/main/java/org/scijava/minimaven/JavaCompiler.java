@@ -36,7 +36,19 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.tools.JavaFileManager.Location;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
 import org.scijava.util.ClassUtils;
@@ -60,7 +72,6 @@ public class JavaCompiler {
 		this.out = out;
 	}
 
-	// this function handles the javac singleton
 	public void call(final String[] arguments, final boolean verbose)
 		throws CompileError
 	{
@@ -70,24 +81,25 @@ public class JavaCompiler {
 	public void call(final String[] arguments, final boolean verbose,
 		final boolean debug) throws CompileError
 	{
-		synchronized (this) {
-			try {
-				final javax.tools.JavaCompiler sysc = ToolProvider
-					.getSystemJavaCompiler();
-				if (sysc != null) {
-					if (debug) {
-						err.print("Found tools compiler: " + sysc.getClass());
-						err.print(ClassUtils.getLocation(sysc.getClass()));
-					}
-					sysc.run(null, out, err, arguments);
-					return;
+		try {
+			final javax.tools.JavaCompiler sysc = ToolProvider
+				.getSystemJavaCompiler();
+			if (sysc != null) {
+				if (debug) {
+					err.print("Found tools compiler: " + sysc.getClass());
+					err.print(ClassUtils.getLocation(sysc.getClass()));
 				}
+				compile(sysc, arguments);
+				return;
+			}
 
-				if (verbose) {
-					err.println(
-						"No javax.tools.JavaCompiler available. Checking for explicit javac.");
-				}
+			if (verbose) {
+				err.println(
+					"No javax.tools.JavaCompiler available. Checking for explicit javac.");
+			}
 
+			final Object result;
+			synchronized (this) {
 				if (javac == null) {
 					final JarClassLoader loader = discoverJavac();
 					final Class<?> main = loader == null ? Thread.currentThread()
@@ -99,22 +111,21 @@ public class JavaCompiler {
 				}
 
 				final Writer writer = new PrintWriter(err);
-				final Object result = javac.invoke(null, new Object[] { arguments,
-					writer });
+				result = javac.invoke(null, new Object[] { arguments, writer });
 				writer.flush();
-				if (!result.equals(new Integer(0))) throw new CompileError(result);
-				return;
-			}
-			catch (final CompileError e) {
-				/* re-throw */
-				throw e;
 			}
-			catch (final Exception e) {
-				if (verbose) {
-					e.printStackTrace(err);
-					err.println("Could not find javac " + e +
-						", falling back to system javac");
-				}
+			if (!result.equals(new Integer(0))) throw new CompileError(result);
+			return;
+		}
+		catch (final CompileError e) {
+			/* re-throw */
+			throw e;
+		}
+		catch (final Exception e) {
+			if (verbose) {
+				e.printStackTrace(err);
+				err.println("Could not find javac " + e +
+					", falling back to system javac");
 			}
 		}
 
@@ -131,6 +142,153 @@ public class JavaCompiler {
 		}
 	}
 
+	/**
+	 * Compiles the given sources using the in-process compiler.
+	 * <p>
+	 * Several compilations can run at the same time. The file managers (which
+	 * keep the .jar files of the class path open, together with their indexes)
+	 * are pooled and reused by subsequent compilations.
+	 * </p>
+	 *
+	 * @param compiler the compiler
+	 * @param arguments the command-line arguments, i.e. options and source files
+	 * @throws IOException
+	 */
+	protected void compile(final javax.tools.JavaCompiler compiler,
+		final String[] arguments) throws IOException
+	{
+		final List<String> options = new ArrayList<String>();
+		final List<String> files = new ArrayList<String>();
+		final Map<Location, String> locations = new HashMap<Location, String>();
+		for (int i = 0; i < arguments.length; i++) {
+			final String argument = arguments[i];
+			if (!argument.startsWith("-") && argument.endsWith(".java")) {
+				files.add(argument);
+				continue;
+			}
+			if (!OPTIONS_WITH_VALUE.contains(argument) || i + 1 == arguments.length) {
+				options.add(argument);
+				continue;
+			}
+			final Location location = LOCATION_OPTIONS.get(argument);
+			if (location != null) locations.put(location, arguments[++i]);
+			else {
+				options.add(argument);
+				options.add(arguments[++i]);
+			}
+		}
+
+		final PooledFileManager fileManager = borrowFileManager(compiler,
+			locations.get(StandardLocation.CLASS_PATH));
+		try {
+			// the file manager is reused: set all locations explicitly
+			for (final Location location : LOCATION_OPTIONS.values()) {
+				final String paths = locations.get(location);
+				fileManager.fileManager.setLocation(location, paths == null ? null
+					: toFiles(paths));
+			}
+			final Writer writer = new PrintWriter(err);
+			compiler.getTask(writer, fileManager.fileManager, null, options, null,
+				fileManager.fileManager.getJavaFileObjectsFromStrings(files)).call();
+			writer.flush();
+		}
+		finally {
+			returnFileManager(fileManager);
+		}
+	}
+
+	private static List<File> toFiles(final String paths) {
+		final List<File> result = new ArrayList<File>();
+		for (final String path : paths.split(File.pathSeparator)) {
+			if (!path.equals("")) result.add(new File(path));
+		}
+		return result;
+	}
+
+	private final static Map<String, Location> LOCATION_OPTIONS =
+		new HashMap<String, Location>();
+
+	static {
+		LOCATION_OPTIONS.put("-classpath", StandardLocation.CLASS_PATH);
+		LOCATION_OPTIONS.put("-cp", StandardLocation.CLASS_PATH);
+		LOCATION_OPTIONS.put("-sourcepath", StandardLocation.SOURCE_PATH);
+		LOCATION_OPTIONS.put("-processorpath",
+			StandardLocation.ANNOTATION_PROCESSOR_PATH);
+		LOCATION_OPTIONS.put("-d", StandardLocation.CLASS_OUTPUT);
+		LOCATION_OPTIONS.put("-s", StandardLocation.SOURCE_OUTPUT);
+	}
+
+	private final static Set<String> OPTIONS_WITH_VALUE = new HashSet<String>(
+		Arrays.asList("-classpath", "-cp", "-sourcepath", "-bootclasspath",
+			"-extdirs", "-endorseddirs", "-processorpath", "-processor", "-d", "-s",
+			"-h", "-encoding", "-source", "-target", "-release"));
+
+	/**
+	 * A file manager, together with the time stamps of the class path elements
+	 * it has seen.
+	 */
+	private static class PooledFileManager {
+
+		private final StandardJavaFileManager fileManager;
+		private final Map<String, Long> stamps = new HashMap<String, Long>();
+
+		private PooledFileManager(final StandardJavaFileManager fileManager) {
+			this.fileManager = fileManager;
+		}
+
+		/**
+		 * Records the time stamps of the given class path elements.
+		 *
+		 * @return false if a class path element changed since it was last seen
+		 */
+		private boolean update(final String classPath) {
+			if (classPath == null) return true;
+			boolean result = true;
+			for (final String path : classPath.split(File.pathSeparator)) {
+				if (path.equals("")) continue;
+				final File file = new File(path);
+				if (!file.isFile()) continue;
+				final long stamp = file.lastModified() ^ (file.length() << 32);
+				final Long previous = stamps.put(path, stamp);
+				if (previous != null && previous != stamp) result = false;
+			}
+			return result;
+		}
+	}
+
+	private final Deque<PooledFileManager> fileManagers =
+		new ArrayDeque<PooledFileManager>();
+
+	private PooledFileManager borrowFileManager(
+		final javax.tools.JavaCompiler compiler, final String classPath)
+		throws IOException
+	{
+		PooledFileManager result;
+		synchronized (fileManagers) {
+			result = fileManagers.poll();
+		}
+		// .jar files that were rebuilt must not be read from a stale index
+		if (result != null && !result.update(classPath)) {
+			result.fileManager.close();
+			result = null;
+		}
+		if (result == null) {
+			result = new PooledFileManager(compiler.getStandardFileManager(null,
+				null, null));
+			result.update(classPath);
+		}
+		return result;
+	}
+
+	private void returnFileManager(final PooledFileManager fileManager)
+		throws IOException
+	{
+		fileManager.fileManager.flush();
+		synchronized (fileManagers) {
+			fileManagers.push(fileManager);
+		}
+	}
+
 	public static class CompileError extends Exception {
 
 		private static final long serialVersionUID = 1L;
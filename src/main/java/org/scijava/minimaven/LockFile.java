@@ -0,0 +1,527 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Records the resolved dependencies of all projects of a build.
+ * <p>
+ * Resolving the dependencies requires parsing the POMs of all dependencies,
+ * checking for new snapshot versions and walking the dependency management
+ * sections of all parents. The lock file records the outcome instead: the
+ * resolved artifacts with their versions, classifiers, packaging, files and
+ * checksums, as well as
+ * which artifacts each project of the reactor (and each of the artifacts)
+ * depends on, for each of the dependency filters used by the build. As long as
+ * none of the reactor's POMs changed, and the artifacts in the local
+ * repository match the recorded checksums, the dependencies are taken
+ * straight from the lock file.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class LockFile {
+
+	public final static String FILE_NAME = "minimaven.lock";
+
+	private final static String HEADER = "# MiniMaven lock file v3";
+	private final static String REPOSITORY_PREFIX = "repository:";
+	private final static String POM_PREFIX = "pom:";
+	private final static String ARTIFACT_PREFIX = "artifact:";
+
+	// the filters used by the build: exclude optional dependencies, and scopes
+	private final static boolean[] EXCLUDE_OPTIONALS = { true, true, true, true,
+		true, false };
+	private final static String[][] EXCLUDE_SCOPES = { { "test" }, { "test",
+		"provided" }, { "test", "runtime" }, { "test", "provided", "system" }, {},
+		{} };
+
+	private final MavenProject root;
+	private final BuildEnvironment env;
+	private final File directory;
+	private final Map<String, File> poms = new TreeMap<String, File>();
+	private final List<MavenProject> artifacts = new ArrayList<MavenProject>();
+	private final Map<String, Map<String, String[]>> dependencies =
+		new TreeMap<String, Map<String, String[]>>();
+	private final Map<String, MavenProject> projects =
+		new TreeMap<String, MavenProject>();
+	private final Map<MavenProject, String> paths =
+		new IdentityHashMap<MavenProject, String>();
+
+	private LockFile(final MavenProject root) {
+		this.root = root;
+		env = root.env;
+		directory = root.directory;
+	}
+
+	/**
+	 * Returns the lock file of a project.
+	 *
+	 * @param root the root project of the reactor
+	 * @return the lock file, which may not exist yet
+	 */
+	public static File getFile(final MavenProject root) {
+		return new File(root.directory, FILE_NAME);
+	}
+
+	/**
+	 * Reads the lock file of a project.
+	 *
+	 * @param root the root project of the reactor
+	 * @return the lock, or null if there is none, or if it is stale
+	 */
+	public static LockFile load(final MavenProject root) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final File file = getFile(root);
+		if (!file.exists()) return null;
+		final LockFile result = new LockFile(root);
+		final String reason = result.read(file);
+		if (reason == null) return result;
+		root.env.err.println("Ignoring " + file + ": " + reason);
+		return null;
+	}
+
+	/**
+	 * Resolves the dependencies of all projects of the reactor and records them.
+	 *
+	 * @param root the root project of the reactor
+	 */
+	public static void write(final MavenProject root) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final BuildEnvironment env = root.env;
+		final LockFile lock = new LockFile(root);
+
+		// resolving might discover more projects, e.g. in multi-project roots
+		final Map<MavenProject, Map<String, Set<MavenProject>>> resolved =
+			new LinkedHashMap<MavenProject, Map<String, Set<MavenProject>>>();
+		for (;;) {
+			boolean changed = false;
+			for (final MavenProject project : lock.getReactor().values()) {
+				if (resolved.containsKey(project)) continue;
+				resolved.put(project, resolve(project));
+				changed = true;
+			}
+			if (!changed) break;
+		}
+		final Map<String, MavenProject> reactor = lock.getReactor();
+
+		// the artifacts' dependencies are needed, too, e.g. when copying them
+		final List<MavenProject> queue = new ArrayList<MavenProject>(resolved
+			.keySet());
+		for (int i = 0; i < queue.size(); i++) {
+			final MavenProject project = queue.get(i);
+			for (final Set<MavenProject> set : resolved.get(project).values()) {
+				for (final MavenProject dependency : set) {
+					if (resolved.containsKey(dependency)) continue;
+					if (reactor.containsValue(dependency)) continue;
+					resolved.put(dependency, resolve(dependency));
+					queue.add(dependency);
+				}
+			}
+		}
+		env.awaitDownloads();
+
+		for (final Map.Entry<String, MavenProject> entry : reactor.entrySet()) {
+			lock.paths.put(entry.getValue(), entry.getKey());
+		}
+		final Map<MavenProject, Integer> indices =
+			new IdentityHashMap<MavenProject, Integer>();
+		final File file = getFile(root);
+		final PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			out.println(HEADER);
+			for (final String path : reactor.keySet()) {
+				final File pom = lock.fromPath(path);
+				out.println("pom\t" + getChecksum(pom) + "\t" + path);
+			}
+			final StringBuilder lines = new StringBuilder();
+			for (final MavenProject project : resolved.keySet()) {
+				// artifacts are indexed before their dependencies are recorded
+				final Integer artifactIndex = indices.get(project);
+				final String path = artifactIndex != null ? ARTIFACT_PREFIX +
+					artifactIndex : lock.paths.get(project);
+				for (final Map.Entry<String, Set<MavenProject>> byFilter : resolved.get(
+					project).entrySet())
+				{
+					lines.append("dependencies\t").append(path).append('\t').append(
+						byFilter.getKey());
+					for (final MavenProject dependency : byFilter.getValue()) {
+						lines.append('\t');
+						final String pomPath = lock.paths.get(dependency);
+						if (pomPath != null) {
+							lines.append(POM_PREFIX).append(pomPath);
+							continue;
+						}
+						Integer index = indices.get(dependency);
+						if (index == null) {
+							index = indices.size();
+							indices.put(dependency, index);
+							lock.writeArtifact(out, dependency);
+						}
+						lines.append(index);
+					}
+					lines.append('\n');
+				}
+			}
+			out.print(lines);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Resolves the dependencies of a project for all of the filters.
+	 */
+	private static Map<String, Set<MavenProject>> resolve(
+		final MavenProject project) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final boolean download = project.env.downloadAutomatically;
+		final Map<String, Set<MavenProject>> result =
+			new TreeMap<String, Set<MavenProject>>();
+		for (int i = 0; i < EXCLUDE_SCOPES.length; i++) {
+			final boolean excludeOptionals = EXCLUDE_OPTIONALS[i];
+			final String[] excludeScopes = EXCLUDE_SCOPES[i];
+			result.put(getFilter(excludeOptionals, excludeScopes), project
+				.getDependencies(excludeOptionals, download, excludeScopes));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the locked dependencies of a project.
+	 *
+	 * @param project the project
+	 * @param filter the dependency filter, see
+	 *          {@link #getFilter(boolean, String...)}
+	 * @return the dependencies, or null if they were not locked
+	 */
+	protected synchronized Set<MavenProject> getDependencies(
+		final MavenProject project, final String filter) throws IOException,
+			ParserConfigurationException, SAXException
+	{
+		final String path = paths.get(project);
+		if (path == null) return null;
+		final Map<String, String[]> byFilter = dependencies.get(path);
+		if (byFilter == null) return null;
+		final String[] references = byFilter.get(filter);
+		if (references == null) return null;
+		final Set<MavenProject> result = new TreeSet<MavenProject>();
+		for (final String reference : references) {
+			if (reference.startsWith(POM_PREFIX)) {
+				final MavenProject pom = getProject(reference.substring(POM_PREFIX
+					.length()));
+				if (pom == null) return null;
+				result.add(pom);
+			}
+			else result.add(artifacts.get(Integer.parseInt(reference)));
+		}
+		return result;
+	}
+
+	/**
+	 * Describes which dependencies are included when resolving.
+	 *
+	 * @param excludeOptionals whether optional dependencies are excluded
+	 * @param excludeScopes the excluded scopes
+	 * @return a string identifying the filter
+	 */
+	protected static String getFilter(final boolean excludeOptionals,
+		final String... excludeScopes)
+	{
+		final StringBuilder builder = new StringBuilder();
+		builder.append(excludeOptionals);
+		if (excludeScopes != null) {
+			final String[] sorted = excludeScopes.clone();
+			Arrays.sort(sorted);
+			for (final String scope : sorted) {
+				builder.append(':').append(scope);
+			}
+		}
+		return builder.toString();
+	}
+
+	private String read(final File file) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			if (!HEADER.equals(reader.readLine())) return "unknown format";
+			for (;;) {
+				final String line = reader.readLine();
+				if (line == null) break;
+				final String[] fields = line.split("\t", -1);
+				if (fields[0].equals("pom") && fields.length == 3) {
+					final File pom = fromPath(fields[2]);
+					if (!pom.isFile() || !fields[1].equals(getChecksum(pom))) {
+						return pom + " changed";
+					}
+					poms.put(fields[2], pom);
+				}
+				else if (fields[0].equals("artifact") && fields.length == 10) {
+					final File target = fromPath(fields[9]);
+					final String checksum = fromField(fields[8]);
+					if (target.exists() && checksum != null && !checksum.equals(
+						getChecksum(target)))
+					{
+						return target + " does not match the recorded checksum";
+					}
+					final MavenProject artifact = readArtifact(fields);
+					if (artifact == null) return "could not obtain " + fields[9];
+					paths.put(artifact, ARTIFACT_PREFIX + artifacts.size());
+					artifacts.add(artifact);
+				}
+				else if (fields[0].equals("dependencies") && fields.length >= 3) {
+					Map<String, String[]> byFilter = dependencies.get(fields[1]);
+					if (byFilter == null) {
+						byFilter = new TreeMap<String, String[]>();
+						dependencies.put(fields[1], byFilter);
+					}
+					byFilter.put(fields[2], Arrays.copyOfRange(fields, 3,
+						fields.length));
+				}
+				else return "invalid line: " + line;
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		for (final Map.Entry<String, MavenProject> entry : getReactor()
+			.entrySet())
+		{
+			if (!poms.containsKey(entry.getKey())) {
+				return "new project " + entry.getKey();
+			}
+			projects.put(entry.getKey(), entry.getValue());
+			paths.put(entry.getValue(), entry.getKey());
+		}
+		return null;
+	}
+
+	private void writeArtifact(final PrintWriter out,
+		final MavenProject artifact) throws IOException
+	{
+		final Coordinate coordinate = artifact.coordinate;
+		final String repository = env.artifactRepositories.get(coordinate
+			.getArtifactKey());
+		out.println("artifact\t" + toField(coordinate.groupId) + "\t" + toField(
+			coordinate.artifactId) + "\t" + toField(coordinate.version) + "\t" +
+			toField(coordinate.snapshotVersion) + "\t" + toField(
+				coordinate.classifier) + "\t" + toField(artifact.packaging) + "\t" +
+			toField(repository) + "\t" + toField(getChecksum(artifact.target)) +
+			"\t" + toPath(artifact.target));
+	}
+
+	private MavenProject readArtifact(final String[] fields) {
+		final Coordinate coordinate = new Coordinate(fromField(fields[1]),
+			fromField(fields[2]), fromField(fields[3]), null, false, null, fromField(
+				fields[5]), null);
+		coordinate.setSnapshotVersion(fromField(fields[4]));
+		final File target = fromPath(fields[9]);
+		final String checksum = fromField(fields[8]);
+		if (!target.exists() && !fetch(target, fields[9], fromField(fields[7]),
+			checksum))
+		{
+			return null;
+		}
+
+		final MavenProject pom = new MavenProject(env, target.getParentFile(),
+			null);
+		pom.target = target;
+		pom.children = new MavenProject[0];
+		pom.coordinate = coordinate;
+		final String packaging = fromField(fields[6]);
+		if (packaging != null) pom.packaging = packaging;
+		return pom;
+	}
+
+	/**
+	 * Downloads a locked artifact that is missing from the local repository.
+	 */
+	private boolean fetch(final File target, final String path,
+		final String repository, final String checksum)
+	{
+		if (env.offlineMode || checksum == null || !path.startsWith(
+			REPOSITORY_PREFIX))
+		{
+			return false;
+		}
+		final Set<String> urls = new TreeSet<String>();
+		if (repository != null) urls.add(repository);
+		else urls.addAll(root.getRepositories());
+		final String relative = path.substring(REPOSITORY_PREFIX.length());
+		for (final String url : urls) {
+			try {
+				final File file = env.downloadAndVerify(url + "/" + relative, target
+					.getParentFile(), env.verbose ? "Downloading " + relative : null);
+				if (checksum.equals(getChecksum(file))) return true;
+				env.err.println("Checksum mismatch: " + file);
+				file.delete();
+			}
+			catch (final Exception e) {
+				if (env.verbose) e.printStackTrace(env.err);
+			}
+		}
+		return false;
+	}
+
+	private MavenProject getProject(final String path) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		MavenProject result = projects.get(path);
+		if (result == null) {
+			final File file = poms.get(path);
+			if (file == null) return null;
+			result = env.parse(file);
+			if (result == null) return null;
+			projects.put(path, result);
+			paths.put(result, path);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the projects that were parsed from outside the local repository.
+	 */
+	private Map<String, MavenProject> getReactor() throws IOException {
+		final Map<String, MavenProject> result =
+			new TreeMap<String, MavenProject>();
+		for (final Map.Entry<File, MavenProject> entry : env.file2pom.entrySet()) {
+			final String path = toPath(entry.getKey());
+			if (!path.startsWith(REPOSITORY_PREFIX)) {
+				result.put(path, entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	private String toPath(final File file) throws IOException {
+		final String path = file.getCanonicalPath();
+		final String repository = BuildEnvironment.mavenRepository
+			.getCanonicalPath() + File.separator;
+		if (path.startsWith(repository)) {
+			return REPOSITORY_PREFIX + path.substring(repository.length()).replace(
+				File.separatorChar, '/');
+		}
+		final String prefix = directory.getCanonicalPath() + File.separator;
+		if (path.startsWith(prefix)) {
+			return path.substring(prefix.length()).replace(File.separatorChar, '/');
+		}
+		return path;
+	}
+
+	private File fromPath(final String path) {
+		if (path.startsWith(REPOSITORY_PREFIX)) {
+			return new File(BuildEnvironment.mavenRepository, path.substring(
+				REPOSITORY_PREFIX.length()));
+		}
+		final File file = new File(path);
+		return file.isAbsolute() ? file : new File(directory, path);
+	}
+
+	private static String toField(final String value) {
+		return value == null ? "-" : value;
+	}
+
+	private static String fromField(final String value) {
+		return "-".equals(value) ? null : value;
+	}
+
+	/**
+	 * Returns the SHA-1 of a file, preferring the one recorded when downloading.
+	 */
+	private static String getChecksum(final File file) throws IOException {
+		if (!file.isFile()) return null;
+		final File sha1 = new File(file.getPath() + ".sha1");
+		if (sha1.exists() && sha1.lastModified() >= file.lastModified()) {
+			final BufferedReader reader = new BufferedReader(new FileReader(sha1));
+			try {
+				final String line = reader.readLine();
+				if (line != null && line.matches("[0-9a-fA-F]{40}( .*)?")) {
+					return line.substring(0, 40).toLowerCase();
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[65536];
+			for (;;) {
+				final int count = in.read(buffer);
+				if (count < 0) break;
+				digest.update(buffer, 0, count);
+			}
+		}
+		finally {
+			in.close();
+		}
+		final StringBuilder builder = new StringBuilder();
+		for (final byte b : digest.digest()) {
+			builder.append(String.format("%02x", b & 0xff));
+		}
+		return builder.toString();
+	}
+}
@@ -44,16 +44,18 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes.Name;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -93,6 +95,10 @@ public class MavenProject implements Comparable<MavenProject> {
 	protected boolean includeImplementationBuild;
 	protected String packaging = "jar";
 
+	// the profile activations that depend on more than the POM's contents
+	protected Map<String, Boolean> activationChecks =
+		new LinkedHashMap<String, Boolean>();
+
 	private static enum BooleanState {
 			UNKNOWN, YES, NO
 	}
@@ -100,6 +106,31 @@ public class MavenProject implements Comparable<MavenProject> {
 	private BooleanState upToDate = BooleanState.UNKNOWN, jarUpToDate =
 		BooleanState.UNKNOWN;
 
+	// the resolved dependencies, by filter, valid for one generation
+	private final Map<String, Set<MavenProject>> resolved =
+		new HashMap<String, Set<MavenProject>>();
+	private int resolvedGeneration = -1;
+
+	// the expanded managed dependencies, valid as long as the parents are
+	private Map<String, List<Coordinate>> managementIndex,
+			inheritedManagementIndex;
+	private List<MavenProject> indexedAncestors;
+
+	// the parsed ${...} templates, and the merged properties
+	private final static Map<String, String[]> templates =
+		new ConcurrentHashMap<String, String[]>();
+	private final static Map<String, String> hardcodedProperties =
+		new HashMap<String, String>();
+	protected boolean parsed;
+	private Map<String, String> effectiveProperties, inheritedProperties;
+
+	static {
+		// hard-code a few variables
+		hardcodedProperties.put("bio-formats.groupId", "loci");
+		hardcodedProperties.put("bio-formats.version", "4.4-SNAPSHOT");
+		hardcodedProperties.put("imagej.groupId", "net.imagej");
+	}
+
 	private static Name CREATED_BY = new Name("Created-By");
 
 	protected MavenProject addModule(final String name) throws IOException,
@@ -158,6 +189,8 @@ public class MavenProject implements Comparable<MavenProject> {
 		}
 		if (target.isDirectory()) BuildEnvironment.rmRF(target);
 		else if (target.exists()) target.delete();
+		final File state = new File(directory, "target/minimaven");
+		if (state.isDirectory()) BuildEnvironment.rmRF(state);
 		final File jar = getTarget();
 		if (jar.exists()) jar.delete();
 		final String fileName = jar.getName();
@@ -172,6 +205,7 @@ public class MavenProject implements Comparable<MavenProject> {
 	{
 		getDependencies(true, true, "test");
 		download();
+		env.awaitDownloads();
 	}
 
 	protected void download() throws FileNotFoundException {
@@ -182,22 +216,57 @@ public class MavenProject implements Comparable<MavenProject> {
 	protected void download(final Coordinate dependency, final boolean quiet)
 		throws FileNotFoundException
 	{
-		for (final String url : getRoot().getRepositories()) {
+		final List<String> repositories = new ArrayList<String>(getRoot()
+			.getRepositories());
+		boolean attempted = false;
+		for (int i = 0; i < repositories.size(); i++) {
+			final String url = repositories.get(i);
+			if (env.missingArtifacts.isMissing(url, dependency, "pom")) {
+				if (env.debug) {
+					env.err.println("Skipping " + url + ": " + dependency.getGAV() +
+						" was not found there recently");
+				}
+				continue;
+			}
+			attempted = true;
 			try {
 				if (env.debug) {
 					env.err.println("Trying to download from " + url);
 				}
-				env.downloadAndVerify(url, dependency, quiet);
+				env.downloadAndVerify(url, dependency, quiet, repositories.subList(i +
+					1, repositories.size()));
+				// the queued .jar download records the repository it used
+				env.artifactRepositories.putIfAbsent(dependency.getArtifactKey(),
+					url);
 				return;
 			}
+			catch (final FileNotFoundException e) {
+				env.missingArtifacts.setMissing(url, dependency, "pom");
+				if (env.verbose) e.printStackTrace();
+			}
 			catch (final Exception e) {
 				if (env.verbose) e.printStackTrace();
 			}
 		}
+		if (dependency.optional) {
+			if (attempted) env.warnMissingOptional(dependency);
+			return;
+		}
 		throw new FileNotFoundException("Could not download " + dependency
 			.getJarName());
 	}
 
+	/**
+	 * Forgets whether this project was built or is up-to-date.
+	 * <p>
+	 * This is needed when the project is built again in the same environment.
+	 * </p>
+	 */
+	protected void resetBuildState() {
+		built = false;
+		upToDate = jarUpToDate = BooleanState.UNKNOWN;
+	}
+
 	public boolean upToDate(final boolean includingJar) throws IOException,
 		ParserConfigurationException, SAXException
 	{
@@ -217,9 +286,9 @@ public class MavenProject implements Comparable<MavenProject> {
 		ParserConfigurationException, SAXException
 	{
 		if (!buildFromSource) return true;
-		for (final MavenProject child : getDependencies(true,
-			env.downloadAutomatically, "test"))
-		{
+		final Set<MavenProject> dependencies = getDependencies(true,
+			env.downloadAutomatically, "test");
+		for (final MavenProject child : dependencies) {
 			if (child != null && !child.upToDate(includingJar)) {
 				if (env.verbose) {
 					env.err.println(getArtifactId() + " not up-to-date because of " +
@@ -231,6 +300,30 @@ public class MavenProject implements Comparable<MavenProject> {
 
 		final File source = getSourceDirectory();
 
+		if (env.contentHashes) {
+			final InputManifest inputs = getInputManifest(dependencies);
+			if (!inputs.isEmpty()) {
+				if (!inputs.isUpToDate() || !getClassDependencies().getStaleSources(
+					Collections.<String> emptySet()).isEmpty())
+				{
+					if (env.verbose) {
+						env.err.println(getArtifactId() +
+							" not up-to-date because its inputs changed");
+					}
+					return false;
+				}
+				if (includingJar && !inputs.isJarUpToDate(getTarget())) {
+					if (env.verbose) {
+						env.err.println(getArtifactId() + " not up-to-date because " +
+							getTarget() + " is not up-to-date");
+					}
+					return false;
+				}
+				inputs.saveStatData();
+				return true;
+			}
+		}
+
 		final List<String> notUpToDates = new ArrayList<String>();
 		long lastModified = addRecursively(notUpToDates, source, ".java", target,
 			".class", false);
@@ -244,6 +337,14 @@ public class MavenProject implements Comparable<MavenProject> {
 			count = 0;
 		}
 
+		if (count == 0 && !getClassDependencies().getDeletedSources().isEmpty()) {
+			if (env.verbose) {
+				env.err.println(getArtifactId() +
+					" not up-to-date because source files were deleted");
+			}
+			return false;
+		}
+
 		if (count > 0) {
 			if (env.verbose) {
 				final StringBuilder files = new StringBuilder();
@@ -290,7 +391,7 @@ public class MavenProject implements Comparable<MavenProject> {
 		return expand(sourceDirectory);
 	}
 
-	protected void addToJarRecursively(final JarOutputStream out,
+	protected void addToJarRecursively(final JarWriter out,
 		final File directory, final String prefix) throws IOException
 	{
 		final File[] list = directory.listFiles();
@@ -302,8 +403,7 @@ public class MavenProject implements Comparable<MavenProject> {
 				if (file.getAbsolutePath().endsWith(
 					"/Fiji_Updater/target/classes/META-INF/maven/sc.fiji/Fiji_Updater/pom.properties"))
 					continue;
-				out.putNextEntry(new ZipEntry(prefix + file.getName()));
-				BuildEnvironment.copy(new FileInputStream(file), out, false);
+				out.add(prefix + file.getName(), file);
 			}
 			else if (file.isDirectory()) {
 				addToJarRecursively(out, file, prefix + file.getName() + "/");
@@ -374,12 +474,21 @@ public class MavenProject implements Comparable<MavenProject> {
 	public void buildAndInstall(final File ijDir, final boolean forceBuild)
 		throws CompileError, IOException, ParserConfigurationException,
 		SAXException
+	{
+		final boolean scheduled = env.getThreads() > 1;
+		if (scheduled) new BuildScheduler(env).build(this, true, forceBuild);
+		buildAndInstall(ijDir, forceBuild, !scheduled);
+	}
+
+	private void buildAndInstall(final File ijDir, final boolean forceBuild,
+		final boolean build) throws CompileError, IOException,
+		ParserConfigurationException, SAXException
 	{
 		if ("pom".equals(getPackaging())) {
 			env.err.println("Looking at children of " + getArtifactId());
 			for (final MavenProject child : getChildren()) {
 				if (child == null) continue;
-				child.buildAndInstall(ijDir, forceBuild);
+				child.buildAndInstall(ijDir, forceBuild, build);
 			}
 			final Set<MavenProject> dependencies = getDependencies(true, false,
 				"test", "provided", "system");
@@ -393,7 +502,7 @@ public class MavenProject implements Comparable<MavenProject> {
 			return;
 		}
 
-		build(true, forceBuild);
+		if (build) build(true, forceBuild);
 
 		for (final MavenProject project : getDependencies(true, false, "test",
 			"provided", "system"))
@@ -482,13 +591,11 @@ public class MavenProject implements Comparable<MavenProject> {
 			return;
 		}
 		if (!buildFromSource || built) return;
-		boolean forceFullBuild = false;
-		for (final MavenProject child : getDependencies(true,
-			env.downloadAutomatically, "test"))
-		{
+		final Set<MavenProject> dependencies = getDependencies(true,
+			env.downloadAutomatically, "test");
+		for (final MavenProject child : dependencies) {
 			if (child != null && !child.upToDate(makeJar)) {
 				child.build(makeJar);
-				forceFullBuild = true;
 			}
 		}
 
@@ -516,27 +623,75 @@ public class MavenProject implements Comparable<MavenProject> {
 			arguments.add("-target");
 			arguments.add(pom2.targetVersion);
 		}
+		final String actionKey = env.actionCache == null ? null : getActionKey(
+			dependencies, arguments.toString());
 		arguments.add("-classpath");
 		arguments.add(classPath);
 		// output directory
 		arguments.add("-d");
 		arguments.add(target.getPath());
 		// the files
-		int count = arguments.size();
-		addRecursively(arguments, source, ".java", target, ".class",
-			!forceFullBuild);
-		count = arguments.size() - count;
-
-		if (count > 0) {
-			env.err.println("Compiling " + count + " file" + (count > 1 ? "s" : "") +
-				" in " + directory);
-			if (env.verbose) {
-				env.err.println(arguments.toString());
-				env.err.println("using the class path: " + classPath);
+		ClassDependencies classDependencies = getClassDependencies();
+		// recompile everything only if the interface of a dependency changed
+		final Properties previousAbi = loadAbi();
+		final Properties abi = new Properties();
+		boolean incremental = !forceBuild && !classDependencies.isEmpty();
+		for (final MavenProject dependency : dependencies) {
+			if (dependency == null) continue;
+			final String fingerprint = dependency.getAbiFingerprint();
+			final String key = "upstream." + dependency.coordinate.getKey();
+			if (fingerprint == null) incremental = false;
+			else {
+				abi.setProperty(key, fingerprint);
+				if (!fingerprint.equals(previousAbi.getProperty(key))) {
+					if (env.verbose && incremental) {
+						env.err.println("Recompiling " + getArtifactId() +
+							" because the interface of " + dependency.getArtifactId() +
+							" changed");
+					}
+					incremental = false;
+				}
+			}
+		}
+		if (abi.size() + 1 != previousAbi.size()) incremental = false;
+		final InputManifest inputs = env.contentHashes ? getInputManifest(
+			dependencies) : null;
+		final boolean restored = actionKey != null && !forceBuild && env.actionCache
+			.restore(actionKey, target);
+		if (restored) {
+			env.err.println("Restored the classes of " + getArtifactId() +
+				" from the cache");
+			classDependencies = new ClassDependencies(classDependencies.file,
+				source, target);
+			classDependencies.update();
+		}
+		else {
+			classDependencies.deleteClasses(classDependencies.getDeletedSources());
+			final List<String> files = new ArrayList<String>();
+			if (incremental) {
+				final Set<String> stale = classDependencies.getStaleSources(
+					inputs == null || inputs.isEmpty() ? null : inputs.getChanged(
+						"src/main/java/"));
+				classDependencies.deleteClasses(stale);
+				for (final String path : stale) {
+					files.add(new File(source, path).getPath());
+				}
+			}
+			else addRecursively(files, source, ".java", target, ".class", true);
+			compile(arguments, files, classPath);
+			if (!classDependencies.update().isEmpty() && incremental) {
+				// compile-time constants are inlined by javac: recompile everything
+				files.clear();
+				addRecursively(files, source, ".java", target, ".class", true);
+				compile(arguments, files, classPath);
+				classDependencies.update();
 			}
-			final String[] array = arguments.toArray(new String[arguments.size()]);
-			if (env.javac != null) env.javac.call(array, env.verbose, env.debug);
 		}
+		classDependencies.save();
+		abi.setProperty("abi", classDependencies.getAbiFingerprint());
+		final OutputStream abiOut = new FileOutputStream(getAbiFile());
+		abi.store(abiOut, "MiniMaven ABI fingerprints");
+		abiOut.close();
 
 		updateRecursively(resources, target, false);
 
@@ -572,55 +727,216 @@ public class MavenProject implements Comparable<MavenProject> {
 		manifest.write(manifestOut);
 		manifestOut.close();
 
+		if (actionKey != null && !restored) try {
+			env.actionCache.store(actionKey, target);
+		}
+		catch (final IOException e) {
+			env.err.println("Warning: could not cache the classes of " +
+				getArtifactId() + ": " + e);
+		}
+
 		if (makeJar) {
-			final OutputStream jarOut = new FileOutputStream(getTarget());
-			final JarOutputStream out = new JarOutputStream(jarOut);
+			final JarWriter out = new JarWriter(getTarget(), env.jarCompressionLevel,
+				env.getJarExecutor());
+			out.setIncremental(env.incrementalJars);
 			addToJarRecursively(out, target, "");
 			if (includeSources) {
-				if (pom.exists()) {
-					out.putNextEntry(new ZipEntry("pom.xml"));
-					BuildEnvironment.copy(new FileInputStream(pom), out, false);
-				}
+				if (pom.exists()) out.add("pom.xml", pom);
 				addToJarRecursively(out, source, "src/main/java/");
 				addToJarRecursively(out, resources, "src/main/resources/");
 			}
 			out.close();
-			jarOut.close();
+		}
+		if (inputs != null) {
+			inputs.setJar(makeJar ? getTarget() : null);
+			inputs.save();
 		}
 
 		built = true;
 	}
 
+	private void compile(final List<String> options, final List<String> files,
+		final String classPath) throws CompileError
+	{
+		final int count = files.size();
+		if (count == 0) return;
+		env.err.println("Compiling " + count + " file" + (count > 1 ? "s" : "") +
+			" in " + directory);
+		final List<String> arguments = new ArrayList<String>(options);
+		arguments.addAll(files);
+		if (env.verbose) {
+			env.err.println(arguments.toString());
+			env.err.println("using the class path: " + classPath);
+		}
+		final String[] array = arguments.toArray(new String[arguments.size()]);
+		if (env.javac != null) env.javac.call(array, env.verbose, env.debug);
+	}
+
+	/**
+	 * Returns the recorded dependencies between the classes of this project.
+	 *
+	 * @return the class dependencies (empty if the project was never compiled)
+	 */
+	protected ClassDependencies getClassDependencies() {
+		return ClassDependencies.load(new File(directory,
+			"target/minimaven/class-dependencies"), getSourceDirectory(), target);
+	}
+
+	/**
+	 * Checksums the inputs of this project's build.
+	 *
+	 * @param dependencies the dependencies this project is compiled against
+	 * @return the inputs, compared to those of the previous build
+	 */
+	protected InputManifest getInputManifest(
+		final Set<MavenProject> dependencies) throws IOException,
+		ParserConfigurationException, SAXException
+	{
+		final InputManifest result = InputManifest.load(new File(directory,
+			"target/minimaven/inputs"));
+		final File source = getSourceDirectory();
+		result.add("src/main/java", source);
+		result.add("src/main/resources", new File(source.getParentFile(),
+			"resources"));
+		for (MavenProject pom = this; pom != null; pom = pom.parent) {
+			if (pom.directory == null) continue;
+			final File file = new File(pom.directory, "pom.xml");
+			if (file.exists()) result.add(pom.getGAV(), file);
+		}
+		result.add("classpath", getClassPath(true));
+		for (final MavenProject dependency : dependencies) {
+			if (dependency == null) continue;
+			final String key = "upstream:" + dependency.coordinate.getKey();
+			if (dependency.buildFromSource) {
+				result.add(key, dependency.getAbiFingerprint());
+			}
+			else {
+				// external artifacts: the manifest caches the checksum by stat data
+				final File target = dependency.getTarget();
+				if (target != null && target.isFile()) result.add(key, target);
+				else result.add(key, (String) null);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the key under which the compiled classes are cached.
+	 *
+	 * @param dependencies the dependencies this project is compiled against
+	 * @param compilerOptions the options affecting the compiler's output
+	 * @return the key, or null if the interface of a dependency is unknown
+	 */
+	protected String getActionKey(final Set<MavenProject> dependencies,
+		final String compilerOptions) throws IOException
+	{
+		final Map<String, String> values = new TreeMap<String, String>();
+		values.put("compiler", compilerOptions);
+		values.put("java.version", System.getProperty("java.version"));
+		for (final MavenProject dependency : dependencies) {
+			if (dependency == null) continue;
+			final String fingerprint = dependency.getAbiFingerprint();
+			if (fingerprint == null) return null;
+			values.put("upstream:" + dependency.coordinate.getKey(), fingerprint);
+		}
+		final File source = getSourceDirectory();
+		final Map<String, File> files = new TreeMap<String, File>();
+		files.put("pom.xml", new File(directory, "pom.xml"));
+		files.put("src/main/java", source);
+		files.put("src/main/resources", new File(source.getParentFile(),
+			"resources"));
+		return ActionCache.computeKey(values, files);
+	}
+
+	/**
+	 * Returns a fingerprint of the public interface of this project's artifact.
+	 * <p>
+	 * For projects built from source, this is the fingerprint of the
+	 * application binary interface of the compiled classes; projects depending
+	 * on this one need to be recompiled only when the fingerprint changes. For
+	 * other artifacts, the fingerprint changes whenever the file changes; when
+	 * comparing checksums instead of modification times, only when its contents
+	 * change.
+	 * </p>
+	 *
+	 * @return the fingerprint, or null if it is unknown
+	 */
+	protected String getAbiFingerprint() throws IOException {
+		if (!buildFromSource) {
+			final File file = getTarget();
+			if (file == null || !file.exists()) return null;
+			if (env.contentHashes) return "crc:" + env.getChecksum(file);
+			return file.length() + ":" + file.lastModified();
+		}
+		return loadAbi().getProperty("abi");
+	}
+
+	private File getAbiFile() {
+		return new File(directory, "target/minimaven/abi.properties");
+	}
+
+	private Properties loadAbi() {
+		final Properties result = new Properties();
+		final File file = getAbiFile();
+		if (file.exists()) try {
+			final InputStream in = new FileInputStream(file);
+			result.load(in);
+			in.close();
+		}
+		catch (final IOException e) {
+			result.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates a profile activation condition that does not depend on the
+	 * POM's contents alone.
+	 *
+	 * @param condition either <i>file:&lt;path&gt;</i> or
+	 *          <i>property:&lt;name&gt;</i>
+	 * @return whether the file or property exists
+	 */
+	protected boolean isActive(final String condition) {
+		final boolean result;
+		if (condition.startsWith("file:")) {
+			result = new File(directory, condition.substring(5)).exists();
+		}
+		else {
+			result = expand("${" + condition.substring(9) + "}") != null;
+		}
+		activationChecks.put(condition, result);
+		return result;
+	}
+
 	protected long addRecursively(final List<String> list, final File directory,
 		final String extension, final File targetDirectory,
 		final String targetExtension, final boolean includeUpToDates)
 	{
 		long lastModified = 0;
 		if (list == null) return lastModified;
-		final File[] files = directory.listFiles();
-		if (files == null) return lastModified;
-		for (final File file : files) {
-			if (file.isDirectory()) {
-				final long lastModified2 = addRecursively(list, file, extension,
-					new File(targetDirectory, file.getName()), targetExtension,
-					includeUpToDates);
-				if (lastModified < lastModified2) lastModified = lastModified2;
+		final TreeSnapshot sources = TreeSnapshot.scan(directory);
+		if (sources.size() == 0) return lastModified;
+		final TreeSnapshot targets = includeUpToDates ? null : TreeSnapshot.scan(
+			targetDirectory);
+		for (final String path : sources.getPaths()) {
+			if (!path.endsWith(extension) || path.equals("package-info.java") ||
+				path.endsWith("/package-info.java"))
+			{
+				continue;
 			}
-			else {
-				final String name = file.getName();
-				if (!name.endsWith(extension) || name.equals("package-info.java")) {
-					continue;
-				}
-				final File targetFile = new File(targetDirectory, name.substring(0, name
-					.length() - extension.length()) + targetExtension);
-				final long lastModified2 = file.lastModified();
-				if (lastModified < lastModified2) lastModified = lastModified2;
-				if (includeUpToDates || !targetFile.exists() || targetFile
-					.lastModified() < lastModified2)
+			final long lastModified2 = sources.getLastModified(path);
+			if (lastModified < lastModified2) lastModified = lastModified2;
+			if (targets != null) {
+				final String targetPath = path.substring(0, path.length() -
+					extension.length()) + targetExtension;
+				if (targets.contains(targetPath) && targets.getLastModified(
+					targetPath) >= lastModified2)
 				{
-					list.add(file.getPath());
+					continue;
 				}
 			}
+			list.add(sources.getFile(path).getPath());
 		}
 		return lastModified;
 	}
@@ -628,28 +944,21 @@ public class MavenProject implements Comparable<MavenProject> {
 	protected long updateRecursively(final File source, final File target,
 		final boolean dryRun) throws IOException
 	{
-		long lastModified = 0;
-		final File[] list = source.listFiles();
-		if (list == null) return lastModified;
-		for (final File file : list) {
-			final File targetFile = new File(target, file.getName());
-			if (file.isDirectory()) {
-				final long lastModified2 = updateRecursively(file, targetFile, dryRun);
-				if (lastModified < lastModified2) lastModified = lastModified2;
-			}
-			else if (file.isFile()) {
-				final long lastModified2 = file.lastModified();
-				if (lastModified < lastModified2) lastModified = lastModified2;
-				if (dryRun || (targetFile.exists() && targetFile
-					.lastModified() >= lastModified2))
-				{
-					continue;
-				}
-				targetFile.getParentFile().mkdirs();
-				BuildEnvironment.copyFile(file, targetFile);
+		final TreeSnapshot sources = TreeSnapshot.scan(source);
+		if (dryRun || sources.size() == 0) return sources.getLastModified();
+		final TreeSnapshot targets = TreeSnapshot.scan(target);
+		for (final String path : sources.getPaths()) {
+			final long lastModified = sources.getLastModified(path);
+			if (targets.contains(path) && targets.getLastModified(
+				path) >= lastModified)
+			{
+				continue;
 			}
+			final File targetFile = new File(target, path);
+			targetFile.getParentFile().mkdirs();
+			BuildEnvironment.copyFile(sources.getFile(path), targetFile);
 		}
-		return lastModified;
+		return sources.getLastModified();
 	}
 
 	public Coordinate getCoordinate() {
@@ -711,6 +1020,7 @@ public class MavenProject implements Comparable<MavenProject> {
 	{
 		final StringBuilder builder = new StringBuilder();
 		builder.append(target);
+		env.awaitDownloads();
 		if (env.debug) {
 			env.err.println("Get classpath for " + coordinate + " for " + (forCompile
 				? "compile" : "runtime"));
@@ -775,6 +1085,7 @@ public class MavenProject implements Comparable<MavenProject> {
 		final boolean deleteOtherVersions) throws IOException
 	{
 		if ("pom".equals(getPackaging())) return;
+		env.awaitDownloads();
 		final File source = getTarget();
 		if (!source.exists()) {
 			if ("imglib-tests".equals(getArtifactId())) {
@@ -807,7 +1118,7 @@ public class MavenProject implements Comparable<MavenProject> {
 			return;
 		}
 		if (deleteOtherVersions) deleteVersions(targetDir, target.getName(), null);
-		BuildEnvironment.copyFile(source, target);
+		env.install(source, target);
 	}
 
 	private static String getTargetDirectory(final File source) {
@@ -866,16 +1177,17 @@ public class MavenProject implements Comparable<MavenProject> {
 	public void copyDependencies(final File directory, final boolean onlyNewer)
 		throws IOException, ParserConfigurationException, SAXException
 	{
-		for (final MavenProject pom : getDependencies(true,
-			env.downloadAutomatically, "test", "provided"))
-		{
+		final Set<MavenProject> dependencies = getDependencies(true,
+			env.downloadAutomatically, "test", "provided");
+		env.awaitDownloads();
+		for (final MavenProject pom : dependencies) {
 			final File file = pom.getTarget();
 			final File destination = new File(directory, pom.coordinate.artifactId +
 				".jar");
 			if (file.exists() && (!onlyNewer || (!destination.exists() || destination
 				.lastModified() < file.lastModified())))
 			{
-				BuildEnvironment.copyFile(file, destination);
+				env.install(file, destination);
 			}
 		}
 	}
@@ -890,10 +1202,34 @@ public class MavenProject implements Comparable<MavenProject> {
 		final boolean downloadAutomatically, final String... excludeScopes)
 			throws IOException, ParserConfigurationException, SAXException
 	{
-		final Set<MavenProject> set = new TreeSet<MavenProject>();
-		getDependencies(set, excludeOptionals, downloadAutomatically, null,
-			excludeScopes);
-		return set;
+		final String filter = LockFile.getFilter(excludeOptionals, excludeScopes);
+		final String key = downloadAutomatically + ":" + filter;
+		// the resolution shares the caches of the build environment
+		synchronized (env) {
+			if (resolvedGeneration != env.dependencyGeneration) {
+				resolved.clear();
+				resolvedGeneration = env.dependencyGeneration;
+			}
+			Set<MavenProject> set = resolved.get(key);
+			if (set == null) {
+				// prefer the dependencies recorded in the lock file, if any
+				if (env.lockFile != null) {
+					set = env.lockFile.getDependencies(this, filter);
+				}
+				if (set == null) {
+					set = new TreeSet<MavenProject>();
+					getDependencies(set, excludeOptionals, downloadAutomatically, null,
+						excludeScopes);
+				}
+				// resolving might have parsed POMs or updated snapshot versions
+				if (resolvedGeneration != env.dependencyGeneration) {
+					resolved.clear();
+					resolvedGeneration = env.dependencyGeneration;
+				}
+				resolved.put(key, set);
+			}
+			return new TreeSet<MavenProject>(set);
+		}
 	}
 
 	public void getDependencies(final Set<MavenProject> result,
@@ -945,6 +1281,7 @@ public class MavenProject implements Comparable<MavenProject> {
 							pom.directory, "maven-metadata-snapshot.xml")));
 					}
 					dependency.setSnapshotVersion(pom.coordinate.getVersion());
+					env.invalidateDependencies();
 				}
 			}
 			if (pom == null && downloadAutomatically) {
@@ -975,18 +1312,15 @@ public class MavenProject implements Comparable<MavenProject> {
 		final Coordinate dependency)
 	{
 		if (dependency.exclusions != null) exclusions.addAll(dependency.exclusions);
-		final String groupId = dependency.getGroupId();
-		final String artifactId = dependency.getArtifactId();
-		queryDependencyManagement(new DependencyManagementCallback() {
+		final String key = dependency.getGroupId() + ":" + dependency
+			.getArtifactId();
+		queryDependencyManagement(key, new DependencyManagementCallback() {
 
 			@Override
 			public boolean coordinate(final MavenProject project,
 				final Coordinate coordinate)
 			{
-				if (coordinate.exclusions != null && groupId.equals(project.expand(
-					coordinate.groupId)) && artifactId.equals(project.expand(
-						coordinate.artifactId)))
-				{
+				if (coordinate.exclusions != null) {
 					exclusions.addAll(coordinate.exclusions);
 				}
 				return false;
@@ -1033,18 +1367,14 @@ public class MavenProject implements Comparable<MavenProject> {
 			return null;
 		}
 		final String[] result = { null };
-		queryDependencyManagement(new DependencyManagementCallback() {
+		final String key = groupId + ":" + artifactId;
+		queryDependencyManagement(key, new DependencyManagementCallback() {
 
 			@Override
 			public boolean coordinate(final MavenProject project,
 				final Coordinate coordinate)
 			{
-				if (coordinate == null || coordinate.version == null || !groupId.equals(
-					project.expand(coordinate.groupId)) || !artifactId.equals(project
-						.expand(coordinate.artifactId)))
-				{
-					return false;
-				}
+				if (coordinate.version == null) return false;
 				result[0] = project.expand(coordinate.version);
 				return true;
 			}
@@ -1054,14 +1384,15 @@ public class MavenProject implements Comparable<MavenProject> {
 
 	/**
 	 * A callback for the
-	 * {@link #queryDependencyManagement(DependencyManagementCallback)}.
+	 * {@link #queryDependencyManagement(String, DependencyManagementCallback)}.
 	 *
 	 * @author Johannes Schindelin
 	 */
 	private static interface DependencyManagementCallback {
 
 		/**
-		 * Handles one coordinate from the &lt;dependencyManagement&gt; section.
+		 * Handles one matching coordinate from the &lt;dependencyManagement&gt;
+		 * section.
 		 *
 		 * @param project the project defining the coordinate
 		 * @param coordinate the coordinate to handle
@@ -1070,41 +1401,152 @@ public class MavenProject implements Comparable<MavenProject> {
 		boolean coordinate(final MavenProject project, final Coordinate coordinate);
 	}
 
-	private void queryDependencyManagement(
+	private void queryDependencyManagement(final String key,
 		final DependencyManagementCallback callback)
 	{
-		for (final Coordinate dependency : dependencyManagement) {
-			if (callback.coordinate(this, dependency)) return;
-		}
+		if (query(getManagementIndex(false).get(key), callback)) return;
 		for (MavenProject parent = this.parent; parent != null; parent =
 			parent.parent)
 		{
-			for (final Coordinate dependency : parent.dependencies) {
-				if (callback.coordinate(parent, dependency)) return;
+			if (parent.query(parent.getManagementIndex(true).get(key), callback)) {
+				return;
+			}
+		}
+	}
+
+	private boolean query(final List<Coordinate> coordinates,
+		final DependencyManagementCallback callback)
+	{
+		if (coordinates == null) return false;
+		for (final Coordinate coordinate : coordinates) {
+			if (callback.coordinate(this, coordinate)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the managed dependencies, indexed by their expanded
+	 * <i>groupId:artifactId</i>.
+	 * <p>
+	 * Expanding the coordinates of large BOMs such as pom-scijava over and over
+	 * again is expensive. Since the expansion depends on the properties of this
+	 * project and its parents, the index is rebuilt whenever the chain of
+	 * parents changes.
+	 * </p>
+	 *
+	 * @param asParent whether to include the &lt;dependencies&gt; section, as
+	 *          is done for the parents of the project looking up a dependency
+	 * @return the index
+	 */
+	private Map<String, List<Coordinate>> getManagementIndex(
+		final boolean asParent)
+	{
+		synchronized (env) {
+			final List<MavenProject> ancestors = new ArrayList<MavenProject>();
+			for (MavenProject pom = parent; pom != null; pom = pom.parent) {
+				ancestors.add(pom);
+			}
+			if (!ancestors.equals(indexedAncestors)) {
+				managementIndex = inheritedManagementIndex = null;
+				indexedAncestors = ancestors;
+			}
+			if (asParent) {
+				if (inheritedManagementIndex == null) {
+					inheritedManagementIndex = new HashMap<String, List<Coordinate>>();
+					addToIndex(inheritedManagementIndex, dependencies);
+					addToIndex(inheritedManagementIndex, dependencyManagement);
+				}
+				return inheritedManagementIndex;
+			}
+			if (managementIndex == null) {
+				managementIndex = new HashMap<String, List<Coordinate>>();
+				addToIndex(managementIndex, dependencyManagement);
 			}
-			for (final Coordinate dependency : parent.dependencyManagement) {
-				if (callback.coordinate(parent, dependency)) return;
+			return managementIndex;
+		}
+	}
+
+	private void addToIndex(final Map<String, List<Coordinate>> index,
+		final List<Coordinate> coordinates)
+	{
+		for (final Coordinate coordinate : coordinates) {
+			if (coordinate == null) continue;
+			final String groupId = expand(coordinate.groupId);
+			final String artifactId = expand(coordinate.artifactId);
+			if (groupId == null || artifactId == null) continue;
+			final String key = groupId + ":" + artifactId;
+			List<Coordinate> list = index.get(key);
+			if (list == null) {
+				list = new ArrayList<Coordinate>();
+				index.put(key, list);
 			}
+			list.add(coordinate);
 		}
 	}
 
 	public String expand(final String string) {
-		if (string == null) return null;
-		String result = string;
+		if (string == null || string.indexOf("${") < 0) return string;
+		String[] segments = templates.get(string);
+		if (segments == null) {
+			segments = parseTemplate(string);
+			templates.put(string, segments);
+		}
+		if (segments.length == 3 && segments[0].length() == 0 &&
+			segments[2].length() == 0)
+		{
+			return expand(getProperty(expandName(segments[1])));
+		}
+		final StringBuilder builder = new StringBuilder(segments[0]);
+		for (int i = 1; i < segments.length; i += 2) {
+			final String value = expand(getProperty(expandName(segments[i])));
+			if (value != null) builder.append(value);
+			builder.append(segments[i + 1]);
+		}
+		return builder.toString();
+	}
+
+	// expands nested placeholders such as the ${b} in ${a.${b}}
+	private String expandName(final String name) {
+		if (name.indexOf("${") < 0) return name;
+		final String result = expand(name);
+		return result == null ? "" : result;
+	}
+
+	/**
+	 * Splits a string into literals and names of properties to interpolate.
+	 * <p>
+	 * The names may contain nested placeholders, e.g. <i>${a.${b}}</i>.
+	 * </p>
+	 *
+	 * @param string the string containing <i>${...}</i> placeholders
+	 * @return the literals (at even indices) and property names (at odd indices)
+	 */
+	private static String[] parseTemplate(final String string) {
+		final List<String> segments = new ArrayList<String>();
+		int offset = 0;
 		for (;;) {
-			final int dollarCurly = result.indexOf("${");
-			if (dollarCurly < 0) return result;
-			final int endCurly = result.indexOf("}", dollarCurly + 2);
-			if (endCurly < 0) throw new RuntimeException("Invalid string: " + string);
-			String property = getProperty(result.substring(dollarCurly + 2,
-				endCurly));
-			if (property == null) {
-				if (dollarCurly == 0 && endCurly == result.length() - 1) return null;
-				property = "";
+			final int dollarCurly = string.indexOf("${", offset);
+			if (dollarCurly < 0) break;
+			int endCurly = -1;
+			for (int i = dollarCurly + 2, depth = 0; i < string.length(); i++) {
+				final char c = string.charAt(i);
+				if (c == '$' && i + 1 < string.length() && string.charAt(i + 1) == '{')
+				{
+					depth++;
+					i++;
+				}
+				else if (c == '}' && depth-- == 0) {
+					endCurly = i;
+					break;
+				}
 			}
-			result = result.substring(0, dollarCurly) + property + result.substring(
-				endCurly + 1);
+			if (endCurly < 0) throw new RuntimeException("Invalid string: " + string);
+			segments.add(string.substring(offset, dollarCurly));
+			segments.add(string.substring(dollarCurly + 2, endCurly));
+			offset = endCurly + 1;
 		}
+		segments.add(string.substring(offset));
+		return segments.toArray(new String[segments.size()]);
 	}
 
 	/**
@@ -1118,28 +1560,54 @@ public class MavenProject implements Comparable<MavenProject> {
 	 * @return the value of the property
 	 */
 	public String getProperty(final String key) {
-		final String systemProperty = System.getProperty(key);
+		final String systemProperty = env.systemProperties.get(key);
 		if (systemProperty != null) return systemProperty;
+		final Map<String, String> effective = getEffectiveProperties();
+		if (effective != null) return effective.get(key);
 		if (properties.containsKey(key)) return properties.get(key);
 		if (key.equals("project.basedir")) return directory.getPath();
-		if (key.equals("rootdir")) {
-			File directory = this.directory;
-			for (;;) {
-				final File parent = directory.getParentFile();
-				if (parent == null || !new File(parent, "pom.xml").exists()) {
-					return directory.getPath();
-				}
-				directory = parent;
+		if (key.equals("rootdir")) return getRootDirectory();
+		if (parent == null) return hardcodedProperties.get(key);
+		return parent.getProperty(key);
+	}
+
+	/**
+	 * Returns the properties of this project merged with the inherited ones.
+	 * <p>
+	 * The merged properties are only available once this project and all of its
+	 * parents are parsed completely; they are rebuilt when a parent changes.
+	 * </p>
+	 *
+	 * @return the properties, or null if they are not final yet
+	 */
+	private synchronized Map<String, String> getEffectiveProperties() {
+		if (!parsed) return null;
+		final Map<String, String> inherited = parent == null
+			? hardcodedProperties : parent.getEffectiveProperties();
+		if (inherited == null) return null;
+		if (effectiveProperties == null || inherited != inheritedProperties) {
+			final Map<String, String> result = new HashMap<String, String>(
+				inherited);
+			if (directory != null) {
+				result.put("project.basedir", directory.getPath());
+				result.put("rootdir", getRootDirectory());
+			}
+			result.putAll(properties);
+			effectiveProperties = result;
+			inheritedProperties = inherited;
+		}
+		return effectiveProperties;
+	}
+
+	private String getRootDirectory() {
+		File directory = this.directory;
+		for (;;) {
+			final File parent = directory.getParentFile();
+			if (parent == null || !new File(parent, "pom.xml").exists()) {
+				return directory.getPath();
 			}
+			directory = parent;
 		}
-		if (parent == null) {
-			// hard-code a few variables
-			if (key.equals("bio-formats.groupId")) return "loci";
-			if (key.equals("bio-formats.version")) return "4.4-SNAPSHOT";
-			if (key.equals("imagej.groupId")) return "net.imagej";
-			return null;
-		}
-		return parent.getProperty(key);
 	}
 
 	public MavenProject getParent() {
@@ -1222,11 +1690,11 @@ public class MavenProject implements Comparable<MavenProject> {
 		{
 			return this;
 		}
-		final String key = dependency.getKey();
+		final ArtifactKey key = dependency.getArtifactKey();
 		if (env.localPOMCache.containsKey(key)) {
 			final MavenProject result = env.localPOMCache.get(key); // may be null
-			if (result == null || BuildEnvironment.compareVersion(dependency
-				.getVersion(), result.coordinate.getVersion()) <= 0)
+			if (result == null || Version.compare(dependency
+				.getParsedVersion(), result.coordinate.getParsedVersion()) <= 0)
 			{
 				return result;
 			}
@@ -1263,6 +1731,7 @@ public class MavenProject implements Comparable<MavenProject> {
 				if (dependency.version.startsWith("[")) {
 					dependency.snapshotVersion = VersionPOMHandler.parse(new File(path,
 						"maven-metadata-version.xml"));
+					env.invalidateDependencies();
 				}
 			}
 			catch (final FileNotFoundException e) { /* ignore */ }
@@ -1294,6 +1763,7 @@ public class MavenProject implements Comparable<MavenProject> {
 						if (env.verbose) env.err.println("Parsing " + xml2);
 						dependency.setSnapshotVersion(SnapshotPOMHandler.parse(xml2));
 					}
+					env.invalidateDependencies();
 				}
 			}
 			catch (final FileNotFoundException e) { /* ignore */ }
@@ -1328,10 +1798,13 @@ public class MavenProject implements Comparable<MavenProject> {
 				result.target = new File(result.directory, dependency.getJarName());
 			}
 			if (result.parent == null) result.parent = getRoot();
-			if (result.isJAR() && !new File(path, dependency.getJarName()).exists()) {
+			if (result.isJAR() && !env.isAvailable(new File(path, dependency
+				.getJarName())))
+			{
 				if (downloadAutomatically) download(dependency, quiet);
 				else {
 					env.localPOMCache.remove(key);
+					env.invalidateDependencies();
 					return null;
 				}
 			}
@@ -1347,20 +1820,21 @@ public class MavenProject implements Comparable<MavenProject> {
 		throws IOException, ParserConfigurationException, SAXException
 	{
 		env.parseMultiProjects();
-		final String key = dependency.getKey();
+		final ArtifactKey key = dependency.getArtifactKey();
 		final MavenProject result = env.localPOMCache.get(key);
-		if (result != null && BuildEnvironment.compareVersion(dependency
-			.getVersion(), result.coordinate.getVersion()) <= 0)
+		if (result != null && Version.compare(dependency
+			.getParsedVersion(), result.coordinate.getParsedVersion()) <= 0)
 		{
 			return result;
 		}
 		return null;
 	}
 
-	protected MavenProject cacheAndReturn(final String key,
+	protected MavenProject cacheAndReturn(final ArtifactKey key,
 		final MavenProject pom)
 	{
 		env.localPOMCache.put(key, pom);
+		env.invalidateDependencies();
 		return pom;
 	}
 
@@ -1377,8 +1851,9 @@ public class MavenProject implements Comparable<MavenProject> {
 				env.err.println("Could not download " + dependency.artifactId + ": " + e
 					.getMessage());
 			}
-			final String key = dependency.getKey();
+			final ArtifactKey key = dependency.getArtifactKey();
 			env.localPOMCache.put(key, null);
+			env.invalidateDependencies();
 			return false;
 		}
 		return true;
@@ -1429,8 +1904,8 @@ public class MavenProject implements Comparable<MavenProject> {
 			result = coordinate.groupId.compareTo(other.coordinate.groupId);
 		}
 		if (result != 0) return result;
-		result = BuildEnvironment.compareVersion(coordinate.getVersion(),
-			other.coordinate.getVersion());
+		result = Version.compare(coordinate.getParsedVersion(), other.coordinate
+			.getParsedVersion());
 		if (result != 0) return result;
 		if (coordinate.classifier == null) {
 			if (other.coordinate.classifier != null) return -1;
@@ -1450,7 +1925,7 @@ public class MavenProject implements Comparable<MavenProject> {
 
 	@Override
 	public int hashCode() {
-		return coordinate.getKey().hashCode();
+		return coordinate.getArtifactKey().hashCode();
 	}
 
 	@Override
@@ -1479,6 +1954,7 @@ public class MavenProject implements Comparable<MavenProject> {
 		// reader.setXMLErrorHandler(...);
 		reader.parse(new InputSource(in));
 		in.close();
+		parsed = true;
 	}
 
 	private class XMLHandler extends AbstractPOMHandler {
@@ -1587,9 +2063,11 @@ public class MavenProject implements Comparable<MavenProject> {
 					.length());
 			}
 
-			if (prefix.equals(">project>groupId")) coordinate.groupId = string;
+			if (prefix.equals(">project>groupId")) {
+				coordinate.groupId = ArtifactKey.intern(string);
+			}
 			else if (prefix.equals(">project>artifactId")) {
-				coordinate.artifactId = string;
+				coordinate.artifactId = ArtifactKey.intern(string);
 			}
 			else if (prefix.equals(">project>version")) coordinate.version = string;
 			else if (prefix.equals(">project>packaging")) packaging = string;
@@ -1606,13 +2084,13 @@ public class MavenProject implements Comparable<MavenProject> {
 				prefix.equals(
 					">project>dependencyManagement>dependencies>dependency>groupId"))
 			{
-				latestDependency.groupId = string;
+				latestDependency.groupId = ArtifactKey.intern(string);
 			}
 			else if (prefix.equals(">project>dependencies>dependency>artifactId") ||
 				prefix.equals(
 					">project>dependencyManagement>dependencies>dependency>artifactId"))
 			{
-				latestDependency.artifactId = string;
+				latestDependency.artifactId = ArtifactKey.intern(string);
 			}
 			else if (prefix.equals(">project>dependencies>dependency>version") ||
 				prefix.equals(
@@ -1694,7 +2172,7 @@ public class MavenProject implements Comparable<MavenProject> {
 			else if (!isCurrentProfile && prefix.equals(
 				">project>profiles>profile>activation>file>exists"))
 			{
-				isCurrentProfile = new File(directory, string).exists();
+				isCurrentProfile = isActive("file:" + string);
 			}
 			else if (!isCurrentProfile && prefix.equals(
 				">project>profiles>profile>activation>activeByDefault"))
@@ -1709,7 +2187,7 @@ public class MavenProject implements Comparable<MavenProject> {
 					negate = true;
 					string = string.substring(1);
 				}
-				isCurrentProfile = negate ^ (expand("${" + string + "}") != null);
+				isCurrentProfile = negate ^ isActive("property:" + string);
 			}
 			else if (prefix.equals(">project>repositories>repository>url")) {
 				repositories.add(string);
@@ -1720,15 +2198,17 @@ public class MavenProject implements Comparable<MavenProject> {
 			else if (prefix.startsWith(">project>parent>")) {
 				if (parentCoordinate == null) parentCoordinate = new Coordinate();
 				if (prefix.equals(">project>parent>groupId")) {
-					if (coordinate.groupId == null) coordinate.groupId = string;
+					if (coordinate.groupId == null) {
+						coordinate.groupId = ArtifactKey.intern(string);
+					}
 					if (parentCoordinate.groupId == null) {
-						parentCoordinate.groupId = string;
+						parentCoordinate.groupId = ArtifactKey.intern(string);
 					}
 					else checkParentTag("groupId", parentCoordinate.groupId, string);
 				}
 				else if (prefix.equals(">project>parent>artifactId")) {
 					if (parentCoordinate.artifactId == null) {
-						parentCoordinate.artifactId = string;
+						parentCoordinate.artifactId = ArtifactKey.intern(string);
 					}
 					else {
 						checkParentTag("artifactId", parentCoordinate.artifactId, string);
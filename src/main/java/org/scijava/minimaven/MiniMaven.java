@@ -31,14 +31,21 @@
 package org.scijava.minimaven;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
 
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
 /**
  * The main-class for a simple and small drop-in replacement of Maven.
  * <p>
@@ -51,8 +58,8 @@ import java.util.TreeSet;
  */
 public class MiniMaven {
 
-	private final static void usage() {
-		System.err.println("Usage: MiniMaven [options...] [command]\n\n" +
+	private final static int usage(final PrintStream err) {
+		err.println("Usage: MiniMaven [options...] [command]\n\n" +
 			"Supported commands:\n" + //
 			"compile\n" + //
 			"\tcompile the project\n" + //
@@ -64,6 +71,8 @@ public class MiniMaven {
 			"\trun the project\n" + //
 			"compile-and-run\n" + //
 			"\tcompile and run the project\n" + //
+			"watch\n" + //
+			"\trecompile the project whenever its sources change\n" + //
 			"clean\n" + //
 			"\tclean the project\n" + //
 			"get-dependencies\n" + //
@@ -71,14 +80,42 @@ public class MiniMaven {
 			"list\n" + //
 			"\tshow list of projects\n" + //
 			"dependency-tree\n" + //
-			"\tshow the tree of depending projects\n\n" + //
+			"\tshow the tree of depending projects\n" + //
+			"resolve [--lock]\n" + //
+			"\tshow the resolved dependencies; with --lock, record them in\n" + //
+			"\t" + LockFile.FILE_NAME + " for subsequent builds to use\n" + //
+			"daemon\n" + //
+			"\tkeep the parsed projects in memory for subsequent builds\n\n" + //
 			"Options:\n" + //
 			"-D<key>=<value>\n" + //
-			"\tset a system property");
-		System.exit(1);
+			"\tset a system property\n" + //
+			"-T <threads>\n" + //
+			"\tbuild independent projects in parallel\n" + //
+			"--daemon\n" + //
+			"\tlet a running daemon perform the command, if possible");
+		return 1;
 	}
 
 	public static void main(final String[] args) throws Exception {
+		final int status = run(args, new File(System.getProperty("user.dir")),
+			System.err, null);
+		if (status != 0) System.exit(status);
+	}
+
+	/**
+	 * Performs a MiniMaven command.
+	 *
+	 * @param args the command-line arguments
+	 * @param directory the directory containing the <i>pom.xml</i>
+	 * @param err where to report errors and progress to
+	 * @param daemon the daemon handling the command, or null
+	 * @return the exit status
+	 */
+	protected static int run(final String[] args, final File directory,
+		final PrintStream err, final BuildDaemon daemon) throws Exception
+	{
+		final List<String> options = new ArrayList<String>();
+		boolean useDaemon = false;
 		int offset;
 		for (offset = 0; offset < args.length && args[offset].charAt(
 			0) == '-'; offset++)
@@ -91,74 +128,129 @@ public class MiniMaven {
 				else value = option.substring(equals + 1);
 				System.setProperty(option.substring(2, equals < 0 ? option.length()
 					: equals), value);
+				options.add(option);
 			}
 			else if (option.equals("-U")) {
 				System.setProperty("minimaven.updateinterval", "0");
+				options.add(option);
+			}
+			else if (option.startsWith("-T")) {
+				final String value = option.length() > 2 ? option.substring(2)
+					: ++offset < args.length ? args[offset] : "";
+				System.setProperty("minimaven.threads", value);
+				options.add("-T" + value);
+			}
+			else if (option.equals("--daemon")) {
+				useDaemon = true;
 			}
 			else {
-				System.err.println("Unknown command: " + option);
-				usage();
+				err.println("Unknown command: " + option);
+				return usage(err);
 			}
 		}
 		String command = "compile-and-run";
+		boolean lock = false;
 		if (args.length == offset + 1) command = args[offset];
-		else if (args.length > offset + 1) usage();
+		else if (args.length == offset + 2 && args[offset].equals("resolve") &&
+			args[offset + 1].equals("--lock"))
+		{
+			command = args[offset];
+			lock = true;
+		}
+		else if (args.length > offset + 1) return usage(err);
 
-		final PrintStream err = System.err;
-		final BuildEnvironment env = new BuildEnvironment(err, //
-			"true".equals(getSystemProperty("minimaven.download.automatically",
-				"true")), //
-			"true".equals(getSystemProperty("minimaven.verbose", "false")), //
-			"true".equals(getSystemProperty("minimaven.debug", "false")));
-		final MavenProject root = env.parse(new File("pom.xml"), null);
-		final String artifactId = getSystemProperty("artifactId", root
-			.getArtifactId().equals("pom-ij-base") || root.getArtifactId().equals(
-				"pom-imagej") ? "ij-app" : root.getArtifactId());
+		if (command.equals("daemon")) {
+			if (daemon != null) {
+				err.println("The daemon is already running");
+				return 1;
+			}
+			new BuildDaemon(err).serve();
+			return 0;
+		}
+		// the project's main class must not be run inside the daemon, and the
+		// daemon must not be blocked by watching
+		if (useDaemon && daemon == null && !command.endsWith("run") && !command
+			.equals("watch"))
+		{
+			final Integer status = BuildDaemon.forward(args, directory, err);
+			if (status != null) return status;
+		}
 
-		MavenProject pom = findPOM(root, artifactId);
-		if (pom == null) {
-			final String specifiedArtifactId = System.getProperty("artifactId");
-			if (specifiedArtifactId != null) {
-				System.err.println("Could not find project for artifactId '" +
-					artifactId + "'!");
-				System.exit(1);
+		final BuildEnvironment env = daemon != null ? daemon.getEnvironment(
+			directory, options, err) : createEnvironment(err);
+		final MavenProject root = env.parse(new File(directory, "pom.xml"), null);
+		MavenProject pom = selectProject(env, root, !command.equals("resolve"),
+			err);
+		if (pom == null) return 1;
+		if (command.equals("resolve")) {
+			if (lock) {
+				LockFile.write(root);
+				err.println("Wrote " + LockFile.getFile(root));
 			}
-			pom = root;
+			for (final MavenProject dependency : pom.getDependencies(true,
+				env.downloadAutomatically, "test"))
+			{
+				err.println(dependency.getGAV());
+			}
+			return 0;
 		}
 		if (command.equals("compile") || command.equals("build") || command.equals(
 			"compile-and-run"))
 		{
-			pom.build();
+			if (env.getThreads() > 1) new BuildScheduler(env).build(pom, false, false);
+			else pom.build();
 			if (command.equals("compile-and-run")) command = "run";
-			else return;
+			else return 0;
+		}
+		else if (command.equals("watch")) {
+			if (daemon != null) {
+				err.println("The daemon cannot watch projects");
+				return 1;
+			}
+			BuildWatcher watcher = new BuildWatcher(env, pom);
+			for (;;) {
+				watcher.build();
+				watcher.watch();
+				err.println("A pom.xml changed; re-reading the projects");
+				final BuildEnvironment reread = createEnvironment(err);
+				pom = selectProject(reread, reread.parse(new File(directory,
+					"pom.xml"), null), true, err);
+				if (pom == null) return 1;
+				watcher = new BuildWatcher(reread, pom);
+			}
 		}
 		else if (command.equals("jar") || command.equals("jars")) {
 			if (!pom.getBuildFromSource()) {
-				System.err.println("Cannot build " + pom + " from source");
-				System.exit(1);
+				err.println("Cannot build " + pom + " from source");
+				return 1;
 			}
-			pom.buildJar();
+			if (env.getThreads() > 1) new BuildScheduler(env).build(pom, true, false);
+			else pom.buildJar();
 			if (command.equals("jars")) pom.copyDependencies(pom.getTarget(), true);
-			return;
+			return 0;
 		}
 		else if (command.equals("install")) try {
 			pom.buildAndInstall();
-			return;
+			return 0;
 		}
 		catch (final Throwable t) {
-			t.printStackTrace();
-			System.exit(1);
+			t.printStackTrace(err);
+			return 1;
 		}
 		if (command.equals("clean")) pom.clean();
 		else if (command.equals("get") || command.equals("get-dependencies")) {
 			pom.downloadDependencies();
 		}
 		else if (command.equals("run")) {
+			if (daemon != null) {
+				err.println("The daemon cannot run projects");
+				return 1;
+			}
 			final String mainClass = getSystemProperty("mainClass", pom
 				.getMainClass());
 			if (mainClass == null) {
 				err.println("No main class specified in pom " + pom.getCoordinate());
-				System.exit(1);
+				return 1;
 			}
 			final String[] paths = pom.getClassPath(false).split(File.pathSeparator);
 			final URL[] urls = new URL[paths.length];
@@ -188,7 +280,7 @@ public class MiniMaven {
 				}
 			}
 			for (final MavenProject pom2 : result)
-				System.err.println(pom2);
+				err.println(pom2);
 		}
 		else if (command.equals("dependency-tree")) {
 			final MavenProject parent = pom.getParent();
@@ -199,8 +291,50 @@ public class MiniMaven {
 		}
 		else {
 			err.println("Unhandled command: " + command);
-			usage();
+			return usage(err);
 		}
+		return 0;
+	}
+
+	/**
+	 * Determines the project to operate on.
+	 *
+	 * @param env the build environment
+	 * @param root the project in the current directory
+	 * @param useLockFile whether to resolve dependencies using the lock file
+	 * @param err where to report errors to
+	 * @return the project, or null if the specified artifactId was not found
+	 */
+	private static MavenProject selectProject(final BuildEnvironment env,
+		final MavenProject root, final boolean useLockFile, final PrintStream err)
+		throws IOException, ParserConfigurationException, SAXException
+	{
+		final String artifactId = getSystemProperty("artifactId", root
+			.getArtifactId().equals("pom-ij-base") || root.getArtifactId().equals(
+				"pom-imagej") ? "ij-app" : root.getArtifactId());
+
+		MavenProject pom = findPOM(root, artifactId);
+		if (pom == null) {
+			final String specifiedArtifactId = System.getProperty("artifactId");
+			if (specifiedArtifactId != null) {
+				err.println("Could not find project for artifactId '" + artifactId +
+					"'!");
+				return null;
+			}
+			pom = root;
+		}
+		env.lockFile = !useLockFile || "false".equals(getSystemProperty(
+			"minimaven.lock", "true")) ? null : LockFile.load(root);
+		env.invalidateDependencies();
+		return pom;
+	}
+
+	protected static BuildEnvironment createEnvironment(final PrintStream err) {
+		return new BuildEnvironment(err, //
+			"true".equals(getSystemProperty("minimaven.download.automatically",
+				"true")), //
+			"true".equals(getSystemProperty("minimaven.verbose", "false")), //
+			"true".equals(getSystemProperty("minimaven.debug", "false")));
 	}
 
 	protected static void showDependencyTree(final PrintStream err,
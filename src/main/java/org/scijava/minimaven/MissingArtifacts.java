@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers which artifacts could not be found in which repositories.
+ * <p>
+ * Without this, every run asks every repository again for optional or missing
+ * artifacts, costing one round-trip per repository. The negative results are
+ * persisted in the local repository and expire after the update interval, so
+ * that {@code -U} (or {@code -Dminimaven.updateinterval=0}) forces MiniMaven
+ * to ask again.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class MissingArtifacts {
+
+	private final File file;
+	private final long timeToLive;
+	private Properties entries;
+
+	/**
+	 * @param file where to persist the negative results
+	 * @param timeToLive for how long (in milliseconds) a result is trusted
+	 */
+	public MissingArtifacts(final File file, final long timeToLive) {
+		this.file = file;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Tests whether a repository recently reported an artifact as missing.
+	 *
+	 * @param repositoryURL the URL of the repository
+	 * @param dependency the artifact
+	 * @param extension the kind of file, e.g. {@code pom} or {@code jar}
+	 * @return whether the repository does not need to be asked again
+	 */
+	public synchronized boolean isMissing(final String repositoryURL,
+		final Coordinate dependency, final String extension)
+	{
+		if (timeToLive <= 0) return false;
+		if (entries == null) entries = read();
+		final String timestamp = entries.getProperty(getKey(repositoryURL,
+			dependency, extension));
+		return timestamp != null && !isExpired(timestamp, System
+			.currentTimeMillis());
+	}
+
+	/**
+	 * Records that a repository does not have an artifact.
+	 *
+	 * @param repositoryURL the URL of the repository
+	 * @param dependency the artifact
+	 * @param extension the kind of file, e.g. {@code pom} or {@code jar}
+	 */
+	public synchronized void setMissing(final String repositoryURL,
+		final Coordinate dependency, final String extension)
+	{
+		if (timeToLive <= 0) return;
+		// merge with what other MiniMaven processes recorded in the meantime
+		entries = read();
+		final long now = System.currentTimeMillis();
+		entries.setProperty(getKey(repositoryURL, dependency, extension), Long
+			.toString(now));
+		final Iterator<Map.Entry<Object, Object>> iter = entries.entrySet()
+			.iterator();
+		while (iter.hasNext()) {
+			if (isExpired((String) iter.next().getValue(), now)) iter.remove();
+		}
+		try {
+			file.getParentFile().mkdirs();
+			final File tmp = new File(file.getPath() + ".tmp");
+			final OutputStream out = new FileOutputStream(tmp);
+			try {
+				entries.store(out, "Artifacts not found by MiniMaven");
+			}
+			finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file)) tmp.delete();
+			}
+		}
+		catch (final IOException e) {
+			// the cache is only an optimization
+		}
+	}
+
+	private boolean isExpired(final String timestamp, final long now) {
+		try {
+			return now - Long.parseLong(timestamp) >= timeToLive;
+		}
+		catch (final NumberFormatException e) {
+			return true;
+		}
+	}
+
+	private Properties read() {
+		final Properties result = new Properties();
+		if (!file.exists()) return result;
+		try {
+			final InputStream in = new FileInputStream(file);
+			try {
+				result.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (final IOException e) {
+			result.clear();
+		}
+		return result;
+	}
+
+	private static String getKey(final String repositoryURL,
+		final Coordinate dependency, final String extension)
+	{
+		// all classifiers share the same POM
+		final String classifier = "pom".equals(extension) ||
+			dependency.classifier == null ? "" : ":" + dependency.classifier;
+		return dependency.groupId + ":" + dependency.artifactId + ":" +
+			dependency.version + classifier + ":" + extension + "@" + repositoryURL;
+	}
+}
@@ -0,0 +1,532 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches parsed POMs from the local Maven repository.
+ * <p>
+ * Released artifacts never change, so there is no need to parse their POMs
+ * over and over again. The parsed models are appended to a single binary file
+ * that is memory-mapped upon first use. Each record is keyed by the path of the
+ * POM, and is only used if the size and modification time of the POM still
+ * match, and if the profile activations that depend on system properties or on
+ * the existence of files still have the same outcome.
+ * </p>
+ * <p>
+ * Other processes may have the file mapped, therefore it is never truncated:
+ * when it is incompatible, or when most of its records were superseded, the
+ * live records are written to a new file that then replaces the old one.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public class POMCache {
+
+	private final static int MAGIC = 0x4d4d5043, VERSION = 1;
+
+	// compact when more than half of this many records were superseded
+	private final static int COMPACTION_THRESHOLD = 64;
+
+	private final File file;
+	private Map<String, int[]> index;
+	private ByteBuffer buffer;
+	private boolean valid;
+	private int records, dead;
+
+	public POMCache(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Determines whether a POM is a candidate for caching.
+	 *
+	 * @param pom the POM file
+	 * @param parent the parent project, if the POM is parsed as a module
+	 * @return whether the parsed model may be cached
+	 */
+	public static boolean isCacheable(final File pom, final MavenProject parent) {
+		return parent == null && pom.getPath().startsWith(
+			BuildEnvironment.mavenRepository.getPath()) && !pom.getParentFile()
+				.getName().endsWith("-SNAPSHOT");
+	}
+
+	/**
+	 * Populates a project from the cache.
+	 *
+	 * @param pom the POM file
+	 * @param project the project to populate
+	 * @return whether the cache had an up-to-date entry
+	 */
+	public synchronized boolean read(final File pom, final MavenProject project) {
+		if (index == null) open();
+		final int[] offsets = index.get(pom.getPath());
+		if (offsets == null) return false;
+		final ByteBuffer record = buffer.duplicate();
+		record.position(offsets[0]);
+		record.limit(offsets[0] + offsets[1]);
+		try {
+			final DataInputStream in = new DataInputStream(new BufferInputStream(
+				record));
+			in.readUTF();
+			if (in.readLong() != pom.length() || in.readLong() != pom
+				.lastModified())
+			{
+				return false;
+			}
+			readModel(in, project);
+			for (final Map.Entry<String, Boolean> entry : project.activationChecks
+				.entrySet())
+			{
+				if (project.isActive(entry.getKey()) != entry.getValue()
+					.booleanValue())
+				{
+					return false;
+				}
+			}
+			project.parsed = true;
+			return true;
+		}
+		catch (final IOException e) {
+			return false;
+		}
+		catch (final BufferUnderflowException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Appends a parsed project to the cache.
+	 *
+	 * @param pom the POM file
+	 * @param project the parsed project
+	 */
+	public synchronized void write(final File pom, final MavenProject project)
+		throws IOException
+	{
+		if (index == null) open();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(pom.getPath());
+		out.writeLong(pom.length());
+		out.writeLong(pom.lastModified());
+		writeModel(out, project);
+		out.close();
+
+		records++;
+		// the record is not part of the mapped buffer, but supersedes others
+		if (index.containsKey(pom.getPath())) dead++;
+		else index.put(pom.getPath(), null);
+
+		file.getParentFile().mkdirs();
+		final RandomAccessFile lockFile = new RandomAccessFile(new File(file
+			.getPath() + ".lock"), "rw");
+		try {
+			final FileLock lock = lockFile.getChannel().lock();
+			try {
+				if (!valid || !file.exists() || (records >= COMPACTION_THRESHOLD &&
+					dead * 2 > records))
+				{
+					rewrite(bytes.toByteArray());
+					return;
+				}
+				final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.seek(raf.length());
+					raf.writeInt(bytes.size());
+					raf.write(bytes.toByteArray());
+				}
+				finally {
+					raf.close();
+				}
+			}
+			finally {
+				lock.release();
+			}
+		}
+		finally {
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Replaces the cache with a file containing only the live records.
+	 * <p>
+	 * The records appended by other processes in the meantime are retained. The
+	 * caller must hold the lock.
+	 * </p>
+	 *
+	 * @param record the record to append
+	 */
+	private void rewrite(final byte[] record) throws IOException {
+		final Map<String, int[]> live = new LinkedHashMap<String, int[]>();
+		ByteBuffer current = null;
+		if (file.exists()) {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				current = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf
+					.length());
+			}
+			finally {
+				raf.close();
+			}
+			try {
+				final int offset = getFirstRecordOffset(current);
+				if (offset < 0) current = null;
+				else scan(current, offset, live);
+			}
+			catch (final IOException e) {
+				current = null;
+			}
+			catch (final BufferUnderflowException e) {
+				current = null;
+			}
+		}
+
+		final File tmp = File.createTempFile(file.getName(), ".tmp", file
+			.getParentFile());
+		try {
+			final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(getOSName());
+				if (current != null) {
+					final byte[] bytes = new byte[65536];
+					for (final int[] offsets : live.values()) {
+						final ByteBuffer slice = current.duplicate();
+						slice.position(offsets[0]);
+						slice.limit(offsets[0] + offsets[1]);
+						out.writeInt(offsets[1]);
+						while (slice.hasRemaining()) {
+							final int count = Math.min(bytes.length, slice.remaining());
+							slice.get(bytes, 0, count);
+							out.write(bytes, 0, count);
+						}
+					}
+				}
+				out.writeInt(record.length);
+				out.write(record);
+			}
+			finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			if (tmp.exists()) tmp.delete();
+		}
+		// re-read lazily
+		index = null;
+	}
+
+	private void open() {
+		index = new HashMap<String, int[]>();
+		valid = false;
+		records = dead = 0;
+		if (!file.exists()) return;
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				final MappedByteBuffer mapped = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				final int offset = getFirstRecordOffset(mapped);
+				if (offset < 0) return;
+				buffer = mapped;
+				records = scan(mapped, offset, index);
+				dead = records - index.size();
+				valid = true;
+			}
+			finally {
+				raf.close();
+			}
+		}
+		catch (final IOException e) {
+			index.clear();
+			buffer = null;
+		}
+		catch (final BufferUnderflowException e) {
+			index.clear();
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Verifies the header of the cache.
+	 *
+	 * @param mapped the contents of the cache file
+	 * @return the offset of the first record, or -1 if the cache is incompatible
+	 */
+	private static int getFirstRecordOffset(final ByteBuffer mapped)
+		throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new BufferInputStream(
+			mapped.duplicate()));
+		// profile activation depends on the operating system
+		if (in.readInt() != MAGIC || in.readInt() != VERSION || !getOSName()
+			.equals(in.readUTF()))
+		{
+			return -1;
+		}
+		return mapped.limit() - in.available();
+	}
+
+	/**
+	 * Indexes the records of the cache.
+	 *
+	 * @param mapped the contents of the cache file
+	 * @param firstOffset the offset of the first record
+	 * @param index the map from POM paths to offset and length of the records
+	 * @return the number of records, including the superseded ones
+	 */
+	private static int scan(final ByteBuffer mapped, final int firstOffset,
+		final Map<String, int[]> index) throws IOException
+	{
+		int count = 0;
+		int offset = firstOffset;
+		while (offset + 4 <= mapped.limit()) {
+			final int length = mapped.getInt(offset);
+			offset += 4;
+			if (length <= 0 || offset + length > mapped.limit()) break;
+			final ByteBuffer record = mapped.duplicate();
+			record.position(offset);
+			final String path = new DataInputStream(new BufferInputStream(record))
+				.readUTF();
+			// later records override earlier ones
+			index.remove(path);
+			index.put(path, new int[] { offset, length });
+			offset += length;
+			count++;
+		}
+		return count;
+	}
+
+	private static String getOSName() {
+		return System.getProperty("os.name");
+	}
+
+	private static void writeModel(final DataOutput out,
+		final MavenProject project) throws IOException
+	{
+		writeCoordinate(out, project.coordinate);
+		out.writeBoolean(project.parentCoordinate != null);
+		if (project.parentCoordinate != null) {
+			writeCoordinate(out, project.parentCoordinate);
+		}
+		out.writeInt(project.properties.size());
+		for (final Map.Entry<String, String> entry : project.properties
+			.entrySet())
+		{
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+		writeStrings(out, project.modules);
+		writeCoordinates(out, project.dependencies);
+		writeCoordinates(out, project.dependencyManagement);
+		writeStrings(out, project.repositories);
+		writeString(out, project.sourceDirectory);
+		writeString(out, project.packaging);
+		writeString(out, project.sourceVersion);
+		writeString(out, project.targetVersion);
+		writeString(out, project.mainClass);
+		out.writeBoolean(project.buildFromSource);
+		out.writeBoolean(project.includeImplementationBuild);
+		out.writeInt(project.activationChecks.size());
+		for (final Map.Entry<String, Boolean> entry : project.activationChecks
+			.entrySet())
+		{
+			out.writeUTF(entry.getKey());
+			out.writeBoolean(entry.getValue());
+		}
+	}
+
+	private static void readModel(final DataInput in,
+		final MavenProject project) throws IOException
+	{
+		final String classifier = project.coordinate.classifier;
+		project.coordinate = readCoordinate(in);
+		project.coordinate.classifier = classifier;
+		if (in.readBoolean()) project.parentCoordinate = readCoordinate(in);
+		for (int count = in.readInt(); count > 0; count--) {
+			project.properties.put(readString(in), readString(in));
+		}
+		readStrings(in, project.modules);
+		readCoordinates(in, project.dependencies);
+		readCoordinates(in, project.dependencyManagement);
+		readStrings(in, project.repositories);
+		project.sourceDirectory = readString(in);
+		project.packaging = readString(in);
+		project.sourceVersion = readString(in);
+		project.targetVersion = readString(in);
+		project.mainClass = readString(in);
+		project.buildFromSource = in.readBoolean();
+		project.includeImplementationBuild = in.readBoolean();
+		for (int count = in.readInt(); count > 0; count--) {
+			project.activationChecks.put(in.readUTF(), in.readBoolean());
+		}
+	}
+
+	private static void writeCoordinate(final DataOutput out,
+		final Coordinate coordinate) throws IOException
+	{
+		writeString(out, coordinate.groupId);
+		writeString(out, coordinate.artifactId);
+		writeString(out, coordinate.version);
+		writeString(out, coordinate.scope);
+		writeString(out, coordinate.systemPath);
+		writeString(out, coordinate.classifier);
+		out.writeBoolean(coordinate.optional);
+		out.writeBoolean(coordinate.exclusions != null);
+		if (coordinate.exclusions != null) {
+			writeStrings(out, coordinate.exclusions);
+		}
+	}
+
+	private static Coordinate readCoordinate(final DataInput in)
+		throws IOException
+	{
+		final Coordinate coordinate = new Coordinate();
+		coordinate.groupId = ArtifactKey.intern(readString(in));
+		coordinate.artifactId = ArtifactKey.intern(readString(in));
+		coordinate.version = readString(in);
+		coordinate.scope = readString(in);
+		coordinate.systemPath = readString(in);
+		coordinate.classifier = readString(in);
+		coordinate.optional = in.readBoolean();
+		if (in.readBoolean()) {
+			coordinate.exclusions = new HashSet<String>();
+			readStrings(in, coordinate.exclusions);
+		}
+		return coordinate;
+	}
+
+	private static void writeCoordinates(final DataOutput out,
+		final List<Coordinate> coordinates) throws IOException
+	{
+		out.writeInt(coordinates.size());
+		for (final Coordinate coordinate : coordinates) {
+			writeCoordinate(out, coordinate);
+		}
+	}
+
+	private static void readCoordinates(final DataInput in,
+		final List<Coordinate> coordinates) throws IOException
+	{
+		for (int count = in.readInt(); count > 0; count--) {
+			coordinates.add(readCoordinate(in));
+		}
+	}
+
+	private static void writeStrings(final DataOutput out,
+		final Collection<String> strings) throws IOException
+	{
+		out.writeInt(strings.size());
+		for (final String string : strings) {
+			writeString(out, string);
+		}
+	}
+
+	private static void readStrings(final DataInput in,
+		final Collection<String> strings) throws IOException
+	{
+		for (int count = in.readInt(); count > 0; count--) {
+			strings.add(readString(in));
+		}
+	}
+
+	private static void writeString(final DataOutput out, final String string)
+		throws IOException
+	{
+		out.writeBoolean(string != null);
+		if (string != null) out.writeUTF(string);
+	}
+
+	private static String readString(final DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Reads from a (memory-mapped) buffer without copying it first.
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		private BufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			final int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A snapshot of the regular files below a directory.
+ * <p>
+ * Walking a source tree with {@link File#listFiles()} and then asking every
+ * entry whether it is a directory, whether it exists, how large it is and when
+ * it was modified costs several system calls per file, and the up-to-date
+ * checks do this for every module on every build. This class reads the
+ * attributes of each entry exactly once, scans the subdirectories in parallel
+ * on a fork/join pool, and records the size and modification time of every
+ * file so that the result can be consulted as often as needed.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public final class TreeSnapshot {
+
+	private final File root;
+	private final Map<String, long[]> entries;
+	private final long lastModified;
+
+	private TreeSnapshot(final File root, final List<Entry> list) {
+		this.root = root;
+		entries = new TreeMap<String, long[]>();
+		long lastModified = 0;
+		for (final Entry entry : list) {
+			entries.put(entry.path, new long[] { entry.length, entry.lastModified });
+			if (lastModified < entry.lastModified) lastModified = entry.lastModified;
+		}
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Scans a directory.
+	 * <p>
+	 * If the directory does not exist, or cannot be read, the snapshot is empty.
+	 * </p>
+	 *
+	 * @param root the directory
+	 * @return the snapshot
+	 */
+	public static TreeSnapshot scan(final File root) {
+		final Path path = root.toPath();
+		final List<Entry> list;
+		if (!Files.isDirectory(path)) list = Collections.emptyList();
+		else list = ForkJoinPool.commonPool().invoke(new Scanner(path, ""));
+		return new TreeSnapshot(root, list);
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns the paths of all files, relative to the root and separated by
+	 * forward slashes, in lexicographic order.
+	 */
+	public Set<String> getPaths() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	public boolean contains(final String path) {
+		return entries.containsKey(path);
+	}
+
+	public File getFile(final String path) {
+		return new File(root, path);
+	}
+
+	/**
+	 * Returns the size of a file, or -1 if it was not found.
+	 */
+	public long getLength(final String path) {
+		final long[] entry = entries.get(path);
+		return entry == null ? -1 : entry[0];
+	}
+
+	/**
+	 * Returns the modification time of a file, or 0 if it was not found (just
+	 * like {@link File#lastModified()}).
+	 */
+	public long getLastModified(final String path) {
+		final long[] entry = entries.get(path);
+		return entry == null ? 0 : entry[1];
+	}
+
+	/**
+	 * Returns the most recent modification time of all files, or 0 if there are
+	 * none.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private static class Entry {
+
+		private final String path;
+		private final long length, lastModified;
+
+		private Entry(final String path, final long length,
+			final long lastModified)
+		{
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static class Scanner extends RecursiveTask<List<Entry>> {
+
+		private static final long serialVersionUID = 1l;
+
+		private final Path directory;
+		private final String prefix;
+
+		private Scanner(final Path directory, final String prefix) {
+			this.directory = directory;
+			this.prefix = prefix;
+		}
+
+		@Override
+		protected List<Entry> compute() {
+			final List<Entry> result = new ArrayList<Entry>();
+			final List<Scanner> subdirectories = new ArrayList<Scanner>();
+			try {
+				final DirectoryStream<Path> stream = Files.newDirectoryStream(
+					directory);
+				try {
+					for (final Path path : stream) {
+						final BasicFileAttributes attributes;
+						try {
+							attributes = Files.readAttributes(path,
+								BasicFileAttributes.class);
+						}
+						catch (final IOException e) {
+							// dangling symlink, or deleted in the meantime
+							continue;
+						}
+						final String name = prefix + path.getFileName().toString();
+						if (attributes.isDirectory()) {
+							final Scanner scanner = new Scanner(path, name + "/");
+							scanner.fork();
+							subdirectories.add(scanner);
+						}
+						else if (attributes.isRegularFile()) {
+							result.add(new Entry(name, attributes.size(), attributes
+								.lastModifiedTime().toMillis()));
+						}
+					}
+				}
+				finally {
+					stream.close();
+				}
+			}
+			catch (final IOException e) {
+				// unreadable directory: treat like an empty one
+			}
+			catch (final DirectoryIteratorException e) {
+				// likewise
+			}
+			for (final Scanner scanner : subdirectories) {
+				result.addAll(scanner.join());
+			}
+			return result;
+		}
+	}
+}
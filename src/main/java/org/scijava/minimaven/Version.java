@@ -0,0 +1,163 @@
+/*
+ * #%L
+ * MiniMaven build system for small Java projects.
+ * %%
+ * Copyright (C) 2011 - 2017 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.scijava.minimaven;
+
+/**
+ * A parsed version string.
+ * <p>
+ * The version is split into its dot-separated components once, so that
+ * comparing two versions does not need to allocate anything.
+ * </p>
+ *
+ * @author Johannes Schindelin
+ */
+public final class Version implements Comparable<Version> {
+
+	private final String version;
+	private final boolean snapshot, timestamp;
+	// offsets of the components, of the end of their leading digits, and ends
+	private final int[] starts, digitEnds, ends;
+
+	public Version(final String version) {
+		this.version = version;
+		snapshot = version.endsWith("-SNAPSHOT");
+		timestamp = isTimestamp(version);
+
+		// like version.split("\\."): trailing empty components are dropped
+		int count = 1;
+		if (version.indexOf('.') >= 0) {
+			int end = version.length();
+			while (end > 0 && version.charAt(end - 1) == '.') end--;
+			count = end == 0 ? 0 : 1;
+			for (int i = 0; i < end; i++) {
+				if (version.charAt(i) == '.') count++;
+			}
+		}
+		starts = new int[count];
+		digitEnds = new int[count];
+		ends = new int[count];
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int end = version.indexOf('.', start);
+			if (end < 0) end = version.length();
+			int digitEnd = start;
+			while (digitEnd < end && Character.isDigit(version.charAt(digitEnd))) {
+				digitEnd++;
+			}
+			starts[i] = start;
+			digitEnds[i] = digitEnd;
+			ends[i] = end;
+			start = end + 1;
+		}
+	}
+
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	public boolean isTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public int compareTo(final Version other) {
+		if (this == other) return 0;
+
+		// prefer snapshot over timestamp versions
+		// (AKA the mpicbg problem)
+		if (timestamp && other.snapshot) return -1;
+		if (snapshot && other.timestamp) return +1;
+
+		for (int i = 0;; i++) {
+			if (i == starts.length) return i == other.starts.length ? 0 : -1;
+			if (i == other.starts.length) return +1;
+
+			// more digits means a larger number
+			final int start1 = starts[i], start2 = other.starts[i];
+			final int digits1 = digitEnds[i] - start1;
+			final int digits2 = other.digitEnds[i] - start2;
+			if (digits1 != digits2) return digits1 - digits2;
+			for (int j = 0; j < digits1; j++) {
+				final int result = Character.digit(version.charAt(start1 + j), 10) -
+					Character.digit(other.version.charAt(start2 + j), 10);
+				if (result != 0) return result;
+			}
+
+			// compare the rest lexicographically
+			final int offset1 = digitEnds[i], offset2 = other.digitEnds[i];
+			final int length1 = ends[i] - offset1;
+			final int length2 = other.ends[i] - offset2;
+			final int length = Math.min(length1, length2);
+			for (int j = 0; j < length; j++) {
+				final int result = version.charAt(offset1 + j) - other.version
+					.charAt(offset2 + j);
+				if (result != 0) return result;
+			}
+			if (length1 != length2) return length1 - length2;
+		}
+	}
+
+	/**
+	 * Compares two versions, where {@code null} is older than any version.
+	 */
+	public static int compare(final Version version1, final Version version2) {
+		if (version1 == null) return version2 == null ? 0 : -1;
+		if (version2 == null) return +1;
+		return version1.compareTo(version2);
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		return other instanceof Version && version.equals(
+			((Version) other).version);
+	}
+
+	@Override
+	public int hashCode() {
+		return version.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return version;
+	}
+
+	// equivalent to version.matches("2\\d{7,13}")
+	private static boolean isTimestamp(final String version) {
+		final int length = version.length();
+		if (length < 8 || length > 14 || version.charAt(0) != '2') return false;
+		for (int i = 1; i < length; i++) {
+			final char c = version.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+}
@@ -30,9 +30,12 @@
 
 package org.scijava.minimaven;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 import static org.scijava.minimaven.TestUtils.assertDependencies;
 import static org.scijava.minimaven.TestUtils.createTemporaryDirectory;
@@ -40,11 +43,46 @@ import static org.scijava.minimaven.TestUtils.haveNetworkConnection;
 import static org.scijava.minimaven.TestUtils.read;
 import static org.scijava.minimaven.TestUtils.writeExampleProject;
 import static org.scijava.minimaven.TestUtils.writeFile;
+import static org.scijava.minimaven.TestUtils.writeWords;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipFile;
 
 import org.junit.Test;
+import org.scijava.util.ClassUtils;
+import org.scijava.util.FileUtils;
 
 /**
  * A simple test for MiniMaven.
@@ -180,6 +218,1056 @@ public class BasicTest {
 		assertDependencies(project, "test:dependency:0.0.3:jar");
 	}
 
+	@Test
+	public void testDependencyManagementPrecedence() throws Exception {
+		final MavenProject grandparent = writeExampleProject( //
+			"<groupId>test</groupId>", //
+			"<artifactId>grandparent</artifactId>", //
+			"<version>0.0.1</version>", //
+			"<packaging>pom</packaging>", //
+			"<dependencyManagement>", //
+			"<dependencies>", //
+			managed("nearest", "1.0.0"), //
+			managed("inherited", "1.0.0"), //
+			managed("own", "1.0.0"), //
+			"</dependencies>", //
+			"</dependencyManagement>");
+
+		writeExampleProject(grandparent.env, //
+			"<parent>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>grandparent</artifactId>", //
+			"<version>0.0.1</version>", //
+			"</parent>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>parent</artifactId>", //
+			"<version>0.0.1</version>", //
+			"<packaging>pom</packaging>", //
+			"<dependencyManagement>", //
+			"<dependencies>", //
+			managed("nearest", "2.0.0"), //
+			managed("nearest", "2.0.1"), //
+			managed("own", "2.0.0"), //
+			"</dependencies>", //
+			"</dependencyManagement>");
+
+		final MavenProject project = writeExampleProject(grandparent.env, //
+			"<parent>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>parent</artifactId>", //
+			"<version>0.0.1</version>", //
+			"</parent>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>project</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<dependencyManagement>", //
+			"<dependencies>", //
+			managed("own", "3.0.0"), //
+			"</dependencies>", //
+			"</dependencyManagement>", //
+			"<dependencies>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>nearest</artifactId>", //
+			"</dependency>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>inherited</artifactId>", //
+			"</dependency>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>own</artifactId>", //
+			"</dependency>", //
+			"</dependencies>");
+
+		final List<Coordinate> dependencies = project.getDirectDependencies();
+		assertEquals(3, dependencies.size());
+		// the nearest parent wins; within one POM, the first entry wins
+		assertEquals("2.0.0", dependencies.get(0).getVersion());
+		assertEquals("1.0.0", dependencies.get(1).getVersion());
+		// the project's own management wins over its parents'
+		assertEquals("3.0.0", dependencies.get(2).getVersion());
+	}
+
+	private static String managed(final String artifactId,
+		final String version)
+	{
+		return "<dependency><groupId>test</groupId><artifactId>" + artifactId +
+			"</artifactId><version>" + version + "</version></dependency>";
+	}
+
+	@Test
+	public void testDependencyMemo() throws Exception {
+		final MavenProject project = writeExampleProject( //
+			"<groupId>test</groupId>", //
+			"<artifactId>memo</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<dependencies>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>dependency</artifactId>", //
+			"<version>1.0.0</version>", //
+			"</dependency>", //
+			"</dependencies>");
+		writeExampleProject(project.env, //
+			"<groupId>test</groupId>", //
+			"<artifactId>dependency</artifactId>", //
+			"<version>1.0.0</version>");
+		assertDependencies(project, "test:dependency:1.0.0:jar");
+
+		// the resolution is memoized...
+		final int generation = project.env.dependencyGeneration;
+		project.dependencies.get(0).version = "2.0.0";
+		assertDependencies(project, "test:dependency:1.0.0:jar");
+		assertEquals(generation, project.env.dependencyGeneration);
+
+		// ... until the dependencies are invalidated; 2.0.0 is not available
+		project.env.invalidateDependencies();
+		assertEquals(generation + 1, project.env.dependencyGeneration);
+		assertDependencies(project);
+	}
+
+	@Test
+	public void testParallelBuild() throws Exception {
+		final MavenProject dependency = writeExampleProject(
+			"<groupId>test</groupId>", //
+			"<artifactId>dependency</artifactId>", //
+			"<version>1.0.0</version>");
+		writeFile(new File(dependency.directory,
+			"src/main/java/test/Dependency.java"), //
+			"package test;\n" + //
+				"public class Dependency {}\n");
+
+		final MavenProject project = writeExampleProject(dependency.env,
+			"<groupId>test</groupId>", //
+			"<artifactId>project</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<dependencies>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>dependency</artifactId>", //
+			"<version>1.0.0</version>", //
+			"</dependency>", //
+			"</dependencies>");
+		writeFile(new File(project.directory, "src/main/java/test/Project.java"), //
+			"package test;\n" + //
+				"public class Project extends Dependency {}\n");
+
+		new BuildScheduler(project.env, 2).build(project, true, false);
+
+		final File jar = new File(project.directory, "target/project-1.0.0.jar");
+		assertTrue(jar.exists());
+		assertTrue(new JarFile(jar).getEntry("test/Project.class") != null);
+		assertTrue(new File(dependency.directory,
+			"target/dependency-1.0.0.jar").exists());
+
+		// forcing a rebuild must not rebuild the (up-to-date) dependencies
+		final File dependencyJar = new File(dependency.directory,
+			"target/dependency-1.0.0.jar");
+		final long future = System.currentTimeMillis() + 3600000l;
+		assertTrue(dependencyJar.setLastModified(future));
+		assertTrue(jar.setLastModified(0));
+		dependency.resetBuildState();
+		project.resetBuildState();
+		new BuildScheduler(project.env, 2).build(project, true, true);
+		assertTrue(jar.lastModified() > 0);
+		assertEquals(future / 1000, dependencyJar.lastModified() / 1000);
+	}
+
+	@Test
+	public void testChangedConstant() throws Exception {
+		final MavenProject project = writeExampleProject();
+		final File constants = new File(project.directory,
+			"src/main/java/test/Constants.java");
+		writeFile(constants, "package test;\n" + //
+			"public class Constants {\n" + //
+			"\tpublic static final int ANSWER = 41;\n" + //
+			"}\n");
+		writeFile(new File(project.directory, "src/main/java/test/Derived.java"), //
+			"package test;\n" + //
+				"public class Derived {\n" + //
+				"\tpublic static final int ANSWER = Constants.ANSWER + 1;\n" + //
+				"}\n");
+		writeFile(new File(project.directory, "src/main/java/test/User.java"), //
+			"package test;\n" + //
+				"public class User {\n" + //
+				"\tpublic static int get() { return Derived.ANSWER; }\n" + //
+				"}\n");
+		project.build();
+		assertEquals(42, callGetAnswer(project));
+
+		// javac inlines constants: User does not refer to Constants, but still
+		// needs to be recompiled
+		writeFile(constants, "package test;\n" + //
+			"public class Constants {\n" + //
+			"\tpublic static final int ANSWER = 42;\n" + //
+			"}\n");
+		assertTrue(constants.setLastModified(System.currentTimeMillis() + 2000));
+		project.resetBuildState();
+		project.build();
+		assertEquals(43, callGetAnswer(project));
+
+		// a forced build recompiles everything
+		final File userClass = new File(project.directory,
+			"target/classes/test/User.class");
+		final long future = System.currentTimeMillis() + 3600000l;
+		assertTrue(userClass.setLastModified(future));
+		project.resetBuildState();
+		project.build(false, true);
+		assertTrue(userClass.lastModified() < future);
+	}
+
+	private static int callGetAnswer(final MavenProject project)
+		throws Exception
+	{
+		final URLClassLoader loader = new URLClassLoader(new URL[] { new File(
+			project.directory, "target/classes/").toURI().toURL() }, null);
+		try {
+			return (Integer) loader.loadClass("test.User").getMethod("get").invoke(
+				null);
+		}
+		finally {
+			loader.close();
+		}
+	}
+
+	@Test
+	public void testUpstreamAbi() throws Exception {
+		final MavenProject dependency = writeExampleProject(
+			"<groupId>test</groupId>", //
+			"<artifactId>dependency</artifactId>", //
+			"<version>1.0.0</version>");
+		final File source = new File(dependency.directory,
+			"src/main/java/test/Dependency.java");
+		writeFile(source, "package test;\n" + //
+			"public class Dependency {}\n");
+
+		final MavenProject project = writeExampleProject(dependency.env,
+			"<groupId>test</groupId>", //
+			"<artifactId>project</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<dependencies>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>dependency</artifactId>", //
+			"<version>1.0.0</version>", //
+			"</dependency>", //
+			"</dependencies>");
+		writeFile(new File(project.directory, "src/main/java/test/Project.java"), //
+			"package test;\n" + //
+				"public class Project extends Dependency {}\n");
+		project.buildJar();
+
+		final File projectClass = new File(project.directory,
+			"target/classes/test/Project.class");
+		final long future = System.currentTimeMillis() + 3600000l;
+		assertTrue(projectClass.setLastModified(future));
+
+		// private changes do not affect the dependents
+		writeFile(source, "package test;\n" + //
+			"public class Dependency { private void hidden() {} }\n");
+		assertTrue(source.setLastModified(System.currentTimeMillis() + 2000));
+		dependency.resetBuildState();
+		project.resetBuildState();
+		project.buildJar();
+		assertEquals(future / 1000, projectClass.lastModified() / 1000);
+
+		// public changes do
+		writeFile(source, "package test;\n" + //
+			"public class Dependency { public void visible() {} }\n");
+		assertTrue(source.setLastModified(System.currentTimeMillis() + 4000));
+		dependency.resetBuildState();
+		project.resetBuildState();
+		project.buildJar();
+		assertTrue(projectClass.lastModified() < future);
+	}
+
+	@Test
+	public void testContentHashes() throws Exception {
+		final MavenProject project = writeExampleProject(
+			"<groupId>test</groupId>", //
+			"<artifactId>hashed</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<dependencies>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>external</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<scope>system</scope>", //
+			"<systemPath>${project.basedir}/lib/external.jar</systemPath>", //
+			"</dependency>", //
+			"</dependencies>");
+		final File jar = new File(project.directory, "lib/external.jar");
+		assertTrue(jar.getParentFile().mkdirs());
+		BuildEnvironment.copyFile(FileUtils.urlToFile(ClassUtils.getLocation(
+			Test.class)), jar);
+		final File source = new File(project.directory,
+			"src/main/java/test/Hashed.java");
+		writeFile(source, "package test;\n" + //
+			"public class Hashed {}\n");
+		project.env.contentHashes = true;
+		project.buildJar();
+
+		final File classFile = new File(project.directory,
+			"target/classes/test/Hashed.class");
+		final long past = System.currentTimeMillis() - 3600000l;
+		assertTrue(classFile.setLastModified(past));
+		final File target = project.getTarget();
+		final long built = target.lastModified();
+
+		// touching the sources and the upstream jar does not change their contents
+		final long future = System.currentTimeMillis() + 3600000l;
+		assertTrue(source.setLastModified(future));
+		assertTrue(jar.setLastModified(future));
+		final BuildEnvironment env = new BuildEnvironment(null, false, false,
+			false);
+		env.contentHashes = true;
+		final MavenProject reparsed = env.parse(new File(project.directory,
+			"pom.xml"));
+		assertTrue(reparsed.upToDate(true));
+		reparsed.buildJar();
+		assertEquals(past / 1000, classFile.lastModified() / 1000);
+		assertEquals(built, target.lastModified());
+	}
+
+	@Test
+	public void testActionCache() throws Exception {
+		final MavenProject project = writeExampleProject(
+			"<groupId>test</groupId>", //
+			"<artifactId>cached-classes</artifactId>", //
+			"<version>1.0.0</version>");
+		writeFile(new File(project.directory, "src/main/java/test/Cached.java"),
+			"package test;\n" + //
+				"public class Cached {}\n");
+		final File cacheDirectory = new File(project.directory, "action-cache");
+		project.env.actionCache = new ActionCache(cacheDirectory, 1l << 30);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		project.env.setErr(new PrintStream(out));
+		project.build();
+		assertFalse(out.toString().contains("Restored"));
+
+		// a clean build restores the classes from the cache
+		final File classFile = new File(project.directory,
+			"target/classes/test/Cached.class");
+		project.clean();
+		assertFalse(classFile.exists());
+		project.resetBuildState();
+		project.build();
+		assertTrue(out.toString().contains("Restored the classes of " +
+			"cached-classes from the cache"));
+		assertTrue(classFile.exists());
+
+		// unless the build is forced
+		out.reset();
+		project.resetBuildState();
+		project.build(false, true);
+		assertFalse(out.toString().contains("Restored"));
+		assertTrue(classFile.exists());
+
+		// eviction leaves entries that are still being written alone
+		final File tmp = new File(cacheDirectory, "other.zip.1234.tmp");
+		writeFile(tmp, "in progress");
+		new ActionCache(cacheDirectory, 0).store("key", new File(
+			project.directory, "target/classes"));
+		assertTrue(tmp.exists());
+		assertFalse(new File(cacheDirectory, "key.zip").exists());
+	}
+
+	@Test
+	public void testLockFile() throws Exception {
+		// use an artifact (with dependencies) from the local repository
+		final File jar = FileUtils.urlToFile(ClassUtils.getLocation(
+			ClassUtils.class));
+		assumeTrue(jar.isFile() && jar.getPath().startsWith(
+			BuildEnvironment.mavenRepository.getPath()));
+		final MavenProject project = writeExampleProject( //
+			"<groupId>test</groupId>", //
+			"<artifactId>locked</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<dependencies>", //
+			"<dependency>", //
+			"<groupId>org.scijava</groupId>", //
+			"<artifactId>scijava-common</artifactId>", //
+			"<version>" + jar.getParentFile().getName() + "</version>", //
+			"</dependency>", //
+			"<dependency>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>system</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<classifier>natives</classifier>", //
+			"<scope>system</scope>", //
+			"<systemPath>${project.basedir}/lib/system.jar</systemPath>", //
+			"</dependency>", //
+			"</dependencies>");
+		final File systemJar = new File(project.directory, "lib/system.jar");
+		writeFile(systemJar, "system");
+		final Set<MavenProject> dependencies = project.getDependencies();
+		MavenProject scijavaCommon = null, system = null;
+		for (final MavenProject dependency : dependencies) {
+			if (dependency.getArtifactId().equals("scijava-common")) {
+				scijavaCommon = dependency;
+			}
+			else if (dependency.getArtifactId().equals("system")) {
+				system = dependency;
+			}
+		}
+		assertTrue(scijavaCommon != null);
+		assertTrue(system != null);
+		// the packaging is part of the GAV, the classifier is checked below
+		system.packaging = "bundle";
+		final Set<String> expected = getGAVs(scijavaCommon.getDependencies());
+		assertFalse(expected.isEmpty());
+		LockFile.write(project);
+
+		// the locked dependencies match the resolved ones
+		BuildEnvironment env = new BuildEnvironment(null, false, false, false);
+		MavenProject root = env.parse(new File(project.directory, "pom.xml"));
+		env.lockFile = LockFile.load(root);
+		assertTrue(env.lockFile != null);
+		final Set<MavenProject> locked = root.getDependencies();
+		assertEquals(getGAVs(dependencies), getGAVs(locked));
+		for (final MavenProject dependency : locked) {
+			if (dependency.getArtifactId().equals("scijava-common")) {
+				assertEquals(expected, getGAVs(dependency.getDependencies()));
+			}
+			else if (dependency.getArtifactId().equals("system")) {
+				assertEquals("natives", dependency.getCoordinate().classifier);
+				assertEquals("bundle", dependency.getPackaging());
+			}
+		}
+
+		// a changed artifact invalidates the lock
+		writeFile(systemJar, "changed");
+		env = new BuildEnvironment(null, false, false, false);
+		root = env.parse(new File(project.directory, "pom.xml"));
+		assertTrue(LockFile.load(root) == null);
+		writeFile(systemJar, "system");
+
+		// a changed POM invalidates the lock
+		final File pom = new File(project.directory, "pom.xml");
+		writeFile(pom, read(pom).replace("<artifactId>locked<",
+			"<artifactId>changed<"));
+		env = new BuildEnvironment(null, false, false, false);
+		root = env.parse(pom);
+		assertTrue(LockFile.load(root) == null);
+	}
+
+	private static Set<String> getGAVs(final Set<MavenProject> projects) {
+		final Set<String> result = new TreeSet<String>();
+		for (final MavenProject project : projects) {
+			result.add(project.getGAV());
+		}
+		return result;
+	}
+
+	@Test
+	public void testMissingArtifacts() throws Exception {
+		final File file = new File(createTemporaryDirectory("missing-"),
+			"missing.properties");
+		final Coordinate coordinate = new Coordinate("test", "missing", "1.0.0");
+		final String url = "https://example.org/repository/";
+		final MissingArtifacts missing = new MissingArtifacts(file, 60000);
+		assertFalse(missing.isMissing(url, coordinate, "jar"));
+		missing.setMissing(url, coordinate, "jar");
+		assertTrue(missing.isMissing(url, coordinate, "jar"));
+		assertFalse(missing.isMissing(url, coordinate, "pom"));
+		assertFalse(missing.isMissing("https://example.org/other/", coordinate,
+			"jar"));
+
+		// classified artifacts are distinct from the unclassified one...
+		final Coordinate tests = new Coordinate("test", "missing", "1.0.0", null,
+			false, null, "tests", null);
+		assertFalse(missing.isMissing(url, tests, "jar"));
+		missing.setMissing(url, tests, "jar");
+		assertTrue(missing.isMissing(url, tests, "jar"));
+		final Coordinate other = new Coordinate("test", "other", "1.0.0");
+		final Coordinate natives = new Coordinate("test", "other", "1.0.0", null,
+			false, null, "natives-linux", null);
+		missing.setMissing(url, natives, "jar");
+		assertFalse(missing.isMissing(url, other, "jar"));
+		// ... but share the POM
+		missing.setMissing(url, natives, "pom");
+		assertTrue(missing.isMissing(url, other, "pom"));
+
+		// the negative result is persisted...
+		assertTrue(new MissingArtifacts(file, 60000).isMissing(url, coordinate,
+			"jar"));
+		// ... expires...
+		Thread.sleep(100);
+		assertFalse(new MissingArtifacts(file, 50).isMissing(url, coordinate,
+			"jar"));
+		// ... and is ignored with -U
+		assertFalse(new MissingArtifacts(file, 0).isMissing(url, coordinate,
+			"jar"));
+		System.setProperty("minimaven.updateinterval", "0");
+		try {
+			final BuildEnvironment env = new BuildEnvironment(null, false, false,
+				false);
+			env.missingArtifacts.setMissing(url, coordinate, "jar");
+			assertFalse(env.missingArtifacts.isMissing(url, coordinate, "jar"));
+		}
+		finally {
+			System.clearProperty("minimaven.updateinterval");
+		}
+	}
+
+	@Test
+	public void testRetriedDownloadValidators() throws Exception {
+		final File dir = createTemporaryDirectory("validators-");
+		final BuildEnvironment env = new BuildEnvironment(null, false, false,
+			false);
+		final byte[] body = "new contents\n".getBytes("UTF-8");
+		final List<String> sent = new ArrayList<String>();
+		env.transport = new Transport() {
+
+			@Override
+			public InputStream open(final URL url, final Properties validators)
+				throws IOException
+			{
+				final String etag = validators.getProperty("ETag");
+				sent.add(etag);
+				if ("new".equals(etag)) return null;
+				validators.clear();
+				validators.setProperty("ETag", "new");
+				if (sent.size() > 1) return new ByteArrayInputStream(body);
+				// the connection breaks after the headers were received
+				return new InputStream() {
+
+					private int offset;
+
+					@Override
+					public int read() throws IOException {
+						if (offset == 4) throw new IOException("Connection reset");
+						return body[offset++];
+					}
+				};
+			}
+		};
+		env.downloadRetries = 1;
+
+		final Properties validators = new Properties();
+		validators.setProperty("ETag", "old");
+		final File file = env.download(new URL(
+			"http://example.org/maven-metadata.xml"), dir, null, null, validators);
+		assertEquals(Arrays.asList("old", "old"), sent);
+		assertTrue(file != null);
+		assertEquals("new contents\n", read(file));
+		assertEquals("new", validators.getProperty("ETag"));
+	}
+
+	@Test
+	public void testDownloadFallback() throws Exception {
+		final BuildEnvironment env = new BuildEnvironment(null, false, false,
+			false);
+		final File directory = createTemporaryDirectory("fallback-");
+		env.missingArtifacts = new MissingArtifacts(new File(directory,
+			"missing"), 60000l);
+		final byte[] jar = "jar contents\n".getBytes("UTF-8");
+		final StringBuilder sha1 = new StringBuilder();
+		for (final byte b : MessageDigest.getInstance("SHA-1").digest(jar)) {
+			sha1.append(String.format("%02x", b & 0xff));
+		}
+		final List<String> requested = Collections.synchronizedList(
+			new ArrayList<String>());
+		env.transport = new Transport() {
+
+			@Override
+			public InputStream open(final URL url, final Properties validators)
+				throws IOException
+			{
+				requested.add(url.getHost() + url.getPath());
+				if (url.getHost().equals("first.invalid")) {
+					throw new FileNotFoundException(url.toString());
+				}
+				if (url.getPath().endsWith(".sha1")) {
+					return new ByteArrayInputStream(sha1.toString().getBytes("UTF-8"));
+				}
+				return new ByteArrayInputStream(jar);
+			}
+		};
+		env.downloads = new DownloadQueue(2, 1);
+
+		// a queued .jar download falls back to the next repository
+		final Coordinate dependency = new Coordinate("test", "fallback", "1.0.0");
+		final String first = "http://first.invalid", second =
+			"http://second.invalid";
+		final File target = new File(directory, dependency.getJarName());
+		env.downloads.submit(target, new Callable<File>() {
+
+			@Override
+			public File call() throws Exception {
+				return env.downloadJar(Arrays.asList(first, second),
+					"/test/fallback/1.0.0/", dependency, directory, null);
+			}
+		});
+		env.awaitDownloads();
+		assertEquals("jar contents\n", read(target));
+		assertEquals(second, env.artifactRepositories.get(dependency
+			.getArtifactKey()));
+		assertTrue(env.missingArtifacts.isMissing(first, dependency, "jar"));
+
+		// the first repository is not asked again
+		requested.clear();
+		assertTrue(target.delete());
+		env.downloads.submit(target, new Callable<File>() {
+
+			@Override
+			public File call() throws Exception {
+				return env.downloadJar(Arrays.asList(first, second),
+					"/test/fallback/1.0.0/", dependency, directory, null);
+			}
+		});
+		env.awaitDownloads();
+		assertTrue(target.exists());
+		for (final String url : requested) {
+			assertTrue(url, url.startsWith("second.invalid/"));
+		}
+	}
+
+	@Test
+	public void testDownloadRetries() throws Exception {
+		final BuildEnvironment env = new BuildEnvironment(null, false, false,
+			false);
+		final File directory = createTemporaryDirectory("retries-");
+		final List<String> events = Collections.synchronizedList(
+			new ArrayList<String>());
+		final CountDownLatch failed = new CountDownLatch(1);
+		// the current and the maximal number of connections
+		final int[] connections = { 0, 0 };
+		env.transport = new Transport() {
+
+			@Override
+			public InputStream open(final URL url, final Properties validators)
+				throws IOException
+			{
+				final String name = url.getPath().substring(1);
+				synchronized (connections) {
+					connections[1] = Math.max(connections[1], ++connections[0]);
+				}
+				try {
+					Thread.sleep(100);
+				}
+				catch (final InterruptedException e) {
+					throw new IOException(e);
+				}
+				finally {
+					synchronized (connections) {
+						connections[0]--;
+					}
+				}
+				events.add(name);
+				if (name.equals("flaky") && failed.getCount() > 0) {
+					failed.countDown();
+					throw new IOException("transient failure");
+				}
+				return new ByteArrayInputStream((name + "\n").getBytes("UTF-8"));
+			}
+		};
+		env.downloads = new DownloadQueue(3, 1);
+		env.downloadRetries = 1;
+
+		final String[] names = { "flaky", "other", "third" };
+		for (int i = 0; i < names.length; i++) {
+			final URL url = new URL("http://host.invalid/" + names[i]);
+			env.downloads.submit(new File(directory, names[i]),
+				new Callable<File>() {
+
+					@Override
+					public File call() throws Exception {
+						return env.download(url, directory, null);
+					}
+				});
+			// the other downloads start while the first one backs off
+			if (i == 0) assertTrue(failed.await(10, TimeUnit.SECONDS));
+		}
+		env.awaitDownloads();
+		for (final String name : names) {
+			assertEquals(name + "\n", read(new File(directory, name)));
+		}
+		// only one connection per host, which is released while backing off
+		assertEquals(1, connections[1]);
+		assertEquals(4, events.size());
+		assertEquals("flaky", events.get(0));
+		assertEquals(new TreeSet<String>(Arrays.asList("other", "third")),
+			new TreeSet<String>(events.subList(1, 3)));
+		assertEquals("flaky", events.get(3));
+	}
+
+	@Test
+	public void testTreeSnapshot() throws Exception {
+		final File root = createTemporaryDirectory("snapshot-");
+		writeFile(new File(root, "top.txt"), "top");
+		writeFile(new File(root, "a/b/c/Nested.java"), "nested");
+		assertTrue(new File(root, "a/empty").mkdirs());
+		final File nested = new File(root, "a/b/c/Nested.java");
+		assertTrue(nested.setLastModified(1234000l));
+		// remove the link afterwards, or the next run cannot delete the directory
+		final Path dangling = new File(root, "a/Dangling.java").toPath();
+		Files.createSymbolicLink(dangling, new File(root, "does-not-exist")
+			.toPath());
+		try {
+			assertSnapshot(root, nested);
+		}
+		finally {
+			Files.delete(dangling);
+		}
+	}
+
+	private static void assertSnapshot(final File root, final File nested) {
+		final TreeSnapshot snapshot = TreeSnapshot.scan(root);
+		assertEquals(new TreeSet<String>(Arrays.asList("a/b/c/Nested.java",
+			"top.txt")), snapshot.getPaths());
+		assertEquals(nested.length(), snapshot.getLength("a/b/c/Nested.java"));
+		assertEquals(1234000l, snapshot.getLastModified("a/b/c/Nested.java"));
+		assertEquals(nested, snapshot.getFile("a/b/c/Nested.java"));
+		assertFalse(snapshot.contains("a/Dangling.java"));
+		assertEquals(-1, snapshot.getLength("a/Dangling.java"));
+		assertEquals(0, snapshot.getLastModified("a/Dangling.java"));
+
+		// a missing directory is empty
+		assertEquals(0, TreeSnapshot.scan(new File(root, "missing")).size());
+
+		// dangling symlinks are not mistaken for sources
+		final ClassDependencies dependencies = new ClassDependencies(new File(
+			root, "deps"), root, new File(root, "classes"));
+		assertEquals(new TreeSet<String>(Arrays.asList("a/b/c/Nested.java")),
+			dependencies.getStaleSources());
+	}
+
+	@Test
+	public void testJarWriter() throws Exception {
+		final File dir = createTemporaryDirectory("jar-");
+		final File manifest = new File(dir, "MANIFEST.MF");
+		writeFile(manifest, "Manifest-Version: 1.0\n\n");
+		final File small = new File(dir, "small.txt");
+		writeFile(small, "Hello, World!\n");
+		// large enough to be streamed rather than compressed in memory
+		final File large = new File(dir, "large.txt");
+		writeWords(large, 3 << 20);
+
+		final File parallel = new File(dir, "parallel.jar");
+		JarWriter writer = new JarWriter(parallel, 6, 4);
+		writer.add("b/small.txt", small);
+		writer.add("a/large.txt", large);
+		writer.add("META-INF/MANIFEST.MF", manifest);
+		writer.close();
+
+		final File serial = new File(dir, "serial.jar");
+		writer = new JarWriter(serial, 6, 1);
+		writer.add("META-INF/MANIFEST.MF", manifest);
+		writer.add("a/large.txt", large);
+		writer.add("b/small.txt", small);
+		writer.close();
+
+		assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(
+			parallel.toPath()));
+		final JarInputStream in = new JarInputStream(new FileInputStream(
+			parallel));
+		assertEquals("1.0", in.getManifest().getMainAttributes().getValue(
+			"Manifest-Version"));
+		assertEquals("a/large.txt", in.getNextJarEntry().getName());
+		assertEquals("b/small.txt", in.getNextJarEntry().getName());
+		in.close();
+		final JarFile jar = new JarFile(parallel);
+		assertEquals(read(large), read(jar, "a/large.txt"));
+		jar.close();
+
+		// an incremental update must be identical to a fresh .jar
+		writeFile(small, "Hello, again!\n");
+		writer = new JarWriter(parallel, 6, 4);
+		writer.setIncremental(true);
+		writer.add("META-INF/MANIFEST.MF", manifest);
+		writer.add("a/large.txt", large);
+		writer.add("b/small.txt", small);
+		writer.close();
+
+		writer = new JarWriter(serial, 6, 1);
+		writer.add("META-INF/MANIFEST.MF", manifest);
+		writer.add("a/large.txt", large);
+		writer.add("b/small.txt", small);
+		writer.close();
+
+		assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(
+			parallel.toPath()));
+		assertEquals("Hello, again!\n", read(new JarFile(parallel),
+			"b/small.txt"));
+	}
+
+	@Test
+	public void testIncrementalJar() throws Exception {
+		final File dir = createTemporaryDirectory("jar-");
+		final File unchanged = new File(dir, "unchanged.txt");
+		writeWords(unchanged, 65536);
+		final File large = new File(dir, "large.txt");
+		writeWords(large, 3 << 20);
+		final File changed = new File(dir, "changed.txt");
+		writeWords(changed, 65536);
+
+		final File file = new File(dir, "test.jar");
+		JarWriter writer = new JarWriter(file, 1, 2);
+		writer.add("unchanged.txt", unchanged);
+		writer.add("large.txt", large);
+		writer.add("changed.txt", changed);
+		writer.close();
+		ZipFile zip = new ZipFile(file);
+		final long unchangedSize = zip.getEntry("unchanged.txt")
+			.getCompressedSize();
+		final long largeSize = zip.getEntry("large.txt").getCompressedSize();
+		zip.close();
+
+		final File best = new File(dir, "best.jar");
+		writer = new JarWriter(best, 9, 2);
+		writer.add("unchanged.txt", unchanged);
+		writer.close();
+		zip = new ZipFile(best);
+		assertTrue(unchangedSize != zip.getEntry("unchanged.txt")
+			.getCompressedSize());
+		zip.close();
+
+		// pretend that the .jar was written with the best compression level
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 1);
+		raf.write('9');
+		raf.close();
+
+		writeFile(changed, "changed\n");
+		writer = new JarWriter(file, 9, 2);
+		writer.setIncremental(true);
+		writer.add("unchanged.txt", unchanged);
+		writer.add("large.txt", large);
+		writer.add("changed.txt", changed);
+		writer.close();
+
+		// the unchanged entries were copied as-is
+		zip = new ZipFile(file);
+		assertEquals(unchangedSize, zip.getEntry("unchanged.txt")
+			.getCompressedSize());
+		assertEquals(largeSize, zip.getEntry("large.txt").getCompressedSize());
+		zip.close();
+		final JarFile jar = new JarFile(file);
+		assertEquals(read(unchanged), read(jar, "unchanged.txt"));
+		assertEquals(read(large), read(jar, "large.txt"));
+		assertEquals("changed\n", read(jar, "changed.txt"));
+		jar.close();
+	}
+
+	@Test
+	public void testJarClassLoader() throws Exception {
+		final File dir = createTemporaryDirectory("loader-");
+		final File older = new File(dir, "older.jar");
+		writeJar(older, "dir/", null, "version.txt", "older\n", "older.txt",
+			"only older\n");
+		final File newer = new File(dir, "newer.jar");
+		writeJar(newer, "version.txt", "newer\n");
+
+		final JarClassLoader loader = new JarClassLoader(older.getPath(), newer
+			.getPath());
+		try {
+			// the last-added .jar file wins
+			assertEquals("newer\n", readResource(loader, "version.txt"));
+			assertEquals("only older\n", readResource(loader, "older.txt"));
+			assertTrue(loader.getResource("version.txt").toString().endsWith(
+				"newer.jar!/version.txt"));
+			// directories are found without trailing slash
+			assertTrue(loader.getResource("dir").toString().endsWith(
+				"older.jar!/dir"));
+			assertTrue(loader.getResourceAsStream("dir", true) != null);
+			assertNull(loader.getResourceAsStream("missing.txt", true));
+		}
+		finally {
+			for (final JarFile jar : loader.jarFilesObjects) {
+				jar.close();
+			}
+		}
+	}
+
+	private static void writeJar(final File file,
+		final String... namesAndContents) throws IOException
+	{
+		final JarOutputStream out = new JarOutputStream(new FileOutputStream(
+			file));
+		for (int i = 0; i < namesAndContents.length; i += 2) {
+			out.putNextEntry(new JarEntry(namesAndContents[i]));
+			if (namesAndContents[i + 1] != null) {
+				out.write(namesAndContents[i + 1].getBytes("UTF-8"));
+			}
+			out.closeEntry();
+		}
+		out.close();
+	}
+
+	private static String readResource(final ClassLoader loader,
+		final String path) throws IOException
+	{
+		final InputStream in = loader.getResourceAsStream(path);
+		assertTrue(path, in != null);
+		try {
+			return new String(JarClassLoader.readStream(in), "UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testDaemon() throws Exception {
+		final MavenProject project = writeExampleProject();
+		final File stateFile = new File(project.directory, "daemon");
+		final BuildDaemon daemon = new BuildDaemon(new PrintStream(
+			new ByteArrayOutputStream()));
+		daemon.requestTimeout = 500;
+		final Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					daemon.serve(stateFile);
+				}
+				catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			final String[] args = { "list" };
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Integer status = null;
+			for (int i = 0; status == null && i < 100; i++) {
+				Thread.sleep(50);
+				status = BuildDaemon.forward(args, project.directory, new PrintStream(
+					out), stateFile);
+			}
+			assertEquals(Integer.valueOf(0), status);
+			assertTrue(out.toString().contains("blub"));
+
+			if (stateFile.toPath().getFileSystem().supportedFileAttributeViews()
+				.contains("posix"))
+			{
+				assertEquals(PosixFilePermissions.fromString("rw-------"), Files
+					.getPosixFilePermissions(stateFile.toPath()));
+			}
+
+			// requests with the wrong secret are ignored
+			final String[] lines = read(stateFile).split("\n");
+			final File forged = new File(project.directory, "forged");
+			writeFile(forged, lines[0] + "\n0123456789abcdef\n");
+			out.reset();
+			try {
+				BuildDaemon.forward(args, project.directory, new PrintStream(out),
+					forged);
+				fail("Forged request was answered");
+			}
+			catch (final IOException e) {
+				// expected
+			}
+			assertEquals(0, out.size());
+
+			// a client that sends nothing does not block the daemon
+			final Socket silent = new Socket(InetAddress.getByName(null), Integer
+				.parseInt(lines[0]));
+			try {
+				out.reset();
+				assertEquals(Integer.valueOf(0), BuildDaemon.forward(args,
+					project.directory, new PrintStream(out), stateFile));
+				assertTrue(out.toString().contains("blub"));
+			}
+			finally {
+				silent.close();
+			}
+		}
+		finally {
+			daemon.close();
+			thread.join(10000);
+		}
+		assertFalse(thread.isAlive());
+	}
+
+	@Test
+	public void testWatcher() throws Exception {
+		final MavenProject parent = writeExampleProject( //
+			"<groupId>test</groupId>", //
+			"<artifactId>watched-parent</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<packaging>pom</packaging>");
+		final MavenProject project = writeExampleProject(parent.env, //
+			"<parent>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>watched-parent</artifactId>", //
+			"<version>1.0.0</version>", //
+			"</parent>", //
+			"<artifactId>watched</artifactId>");
+		assertTrue(project.getParent() == parent);
+		final File classes = new File(project.directory, "target/classes/test");
+		writeFile(new File(project.directory, "src/main/java/test/Hello.java"),
+			"package test;\npublic class Hello {}\n");
+		final ByteArrayOutputStream log = new ByteArrayOutputStream();
+		project.env.setErr(new PrintStream(log, true));
+		final BuildWatcher watcher = new BuildWatcher(project.env, project);
+		watcher.debounce = 50;
+		watcher.build();
+		assertTrue(new File(classes, "Hello.class").exists());
+
+		Thread thread = watch(watcher, log);
+		try {
+			// a new source file is compiled
+			writeFile(new File(project.directory, "src/main/java/test/World.java"),
+				"package test;\npublic class World {}\n");
+			final File world = new File(classes, "World.class");
+			for (int i = 0; i < 200 && !world.exists(); i++) {
+				Thread.sleep(50);
+			}
+			assertTrue(world.exists());
+
+			// modifying the parent POM stops the watcher
+			final File pom = new File(parent.directory, "pom.xml");
+			writeFile(pom, read(pom));
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+
+			// so does deleting it
+			thread = watch(watcher, log);
+			assertTrue(pom.delete());
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+		}
+		finally {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Runs the watcher in a separate thread, once it watches the projects.
+	 */
+	private static Thread watch(final BuildWatcher watcher,
+		final ByteArrayOutputStream log) throws InterruptedException
+	{
+		log.reset();
+		final Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					watcher.watch();
+				}
+				catch (final InterruptedException e) {
+					// stopped by the test
+				}
+				catch (final Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		for (int i = 0; i < 200 && !log.toString().contains("Watching"); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(log.toString().contains("Watching"));
+		return thread;
+	}
+
 	@Test
 	public void testClassifiers() throws Exception {
 		assumeTrue(haveNetworkConnection());
@@ -247,4 +1335,154 @@ public class BasicTest {
 		assertFalse(oldVersion3.exists());
 		assertTrue(different.exists());
 	}
+
+	@Test
+	public void testPOMCache() throws Exception {
+		final MavenProject project = writeExampleProject(
+			"<groupId>test</groupId>", //
+			"<artifactId>cached</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<properties>", //
+			"<answer>42</answer>", //
+			"</properties>", //
+			"<dependencies>", //
+			"<dependency>", //
+			"<groupId>test2</groupId>", //
+			"<artifactId>dependency</artifactId>", //
+			"<version>0.0.1</version>", //
+			"<scope>test</scope>", //
+			"</dependency>", //
+			"</dependencies>");
+		final File pom = new File(project.directory, "pom.xml");
+		final File file = new File(project.directory, "pom-cache");
+		new POMCache(file).write(pom, project);
+
+		final MavenProject cached = new MavenProject(project.env,
+			project.directory, null);
+		assertTrue(new POMCache(file).read(pom, cached));
+		assertEquals(project.getGAV(), cached.getGAV());
+		assertEquals("42", cached.properties.get("answer"));
+		assertEquals(1, cached.dependencies.size());
+		assertEquals("test", cached.dependencies.get(0).scope);
+
+		// superseded records are compacted away, without disturbing readers
+		final POMCache reader = new POMCache(file);
+		assertTrue(reader.read(pom, new MavenProject(project.env,
+			project.directory, null)));
+		final long length = file.length();
+		final POMCache writer = new POMCache(file);
+		for (int i = 0; i < 1000; i++) {
+			writer.write(pom, project);
+		}
+		assertTrue(file.length() < 100 * length);
+		assertTrue(reader.read(pom, new MavenProject(project.env,
+			project.directory, null)));
+		assertTrue(new POMCache(file).read(pom, new MavenProject(project.env,
+			project.directory, null)));
+
+		// an incompatible cache is replaced
+		writeFile(file, "garbage");
+		new POMCache(file).write(pom, project);
+		assertTrue(new POMCache(file).read(pom, new MavenProject(project.env,
+			project.directory, null)));
+
+		assertTrue(pom.setLastModified(pom.lastModified() - 10000));
+		assertFalse(new POMCache(file).read(pom, new MavenProject(project.env,
+			project.directory, null)));
+	}
+
+	@Test
+	public void testInterning() {
+		final ArtifactKey key = ArtifactKey.get(new String("test"), new String(
+			"interned"), null);
+		assertTrue(key == ArtifactKey.get(new String("test"), new String(
+			"interned"), null));
+		assertTrue(key.getArtifactId() == ArtifactKey.intern(new String(
+			"interned")));
+
+		// unused keys are not kept alive
+		final WeakReference<ArtifactKey> reference =
+			new WeakReference<ArtifactKey>(ArtifactKey.get("test", new String(
+				"unused"), null));
+		for (int i = 0; reference.get() != null && i < 100; i++) {
+			System.gc();
+		}
+		assertTrue(reference.get() == null);
+	}
+
+	@Test
+	public void testVersionOrder() {
+		final String[] ordered = { "0.9", "1.0", "1.0.1", "1.2", "1.2-beta",
+			"1.10", "2", "20120131", "2.0-SNAPSHOT" };
+		for (int i = 0; i < ordered.length; i++) {
+			for (int j = 0; j < ordered.length; j++) {
+				final int expected = Integer.signum(i - j);
+				final int actual = Integer.signum(new Version(ordered[i]).compareTo(
+					new Version(ordered[j])));
+				assertEquals(ordered[i] + " vs " + ordered[j], expected, actual);
+			}
+		}
+		assertEquals(0, new Version("1.0").compareTo(new Version("1.0.")));
+		assertTrue(Version.compare(null, new Version("1.0")) < 0);
+	}
+
+	@Test
+	public void testPropertyExpansion() throws Exception {
+		final MavenProject parent = writeExampleProject( //
+			"<groupId>test</groupId>", //
+			"<artifactId>parent</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<packaging>pom</packaging>", //
+			"<properties>", //
+			"<answer>41</answer>", //
+			"<derived>answer=${answer}</derived>", //
+			"<platform>linux</platform>", //
+			"<natives.linux>so</natives.linux>", //
+			"</properties>");
+		// the parent's properties are flattened before the child is parsed
+		assertEquals("answer=41", parent.expand("${derived}"));
+
+		final MavenProject child = writeExampleProject(parent.env, //
+			"<parent>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>parent</artifactId>", //
+			"<version>1.0.0</version>", //
+			"</parent>", //
+			"<groupId>test</groupId>", //
+			"<artifactId>child</artifactId>", //
+			"<version>1.0.0</version>", //
+			"<properties>", //
+			"<answer>42</answer>", //
+			"</properties>");
+		assertEquals("42", child.expand("${answer}"));
+		assertEquals("answer=42", child.expand("${derived}"));
+		assertEquals("answer=41", parent.expand("${derived}"));
+
+		// nested placeholders
+		assertEquals("so", child.expand("${natives.${platform}}"));
+		assertEquals("lib.so!", child.expand("lib.${natives.${platform}}!"));
+
+		// unresolved placeholders
+		assertNull(child.expand("${missing}"));
+		assertEquals("ab", child.expand("a${missing}b"));
+		assertNull(child.expand("${natives.${missing}}"));
+	}
+
+	@Test
+	public void testSystemPropertiesOverride() throws Exception {
+		System.setProperty("minimaven.test.answer", "42");
+		try {
+			final MavenProject project = writeExampleProject( //
+				"<groupId>test</groupId>", //
+				"<artifactId>overridden</artifactId>", //
+				"<version>1.0.0</version>", //
+				"<properties>", //
+				"<minimaven.test.answer>41</minimaven.test.answer>", //
+				"</properties>");
+			assertEquals("42", project.expand("${minimaven.test.answer}"));
+		}
+		finally {
+			System.clearProperty("minimaven.test.answer");
+		}
+	}
 }
@@ -34,6 +34,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,6 +49,7 @@ import java.util.AbstractMap;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
@@ -172,7 +174,14 @@ public class TestUtils {
 		throws IOException
 	{
 		final ZipEntry entry = jar.getEntry(path);
-		final InputStream in = jar.getInputStream(entry);
+		return read(jar.getInputStream(entry));
+	}
+
+	protected static String read(final File file) throws IOException {
+		return read(new FileInputStream(file));
+	}
+
+	protected static String read(final InputStream in) throws IOException {
 		final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
 		final StringBuilder builder = new StringBuilder();
 		for (;;) {
@@ -195,6 +204,27 @@ public class TestUtils {
 		writer.close();
 	}
 
+	/**
+	 * Writes a file of the given size consisting of pseudo-random words.
+	 * <p>
+	 * The contents are compressible, but less so with lower compression levels.
+	 * </p>
+	 */
+	protected static void writeWords(final File file, final int size)
+		throws IOException
+	{
+		final String[] words = { "alpha", "beta", "gamma", "delta", "epsilon",
+			"zeta", "eta", "theta", "iota", "kappa", "lambda", "mu" };
+		final Random random = new Random(size);
+		final StringBuilder builder = new StringBuilder();
+		while (builder.length() < size) {
+			builder.append(words[random.nextInt(words.length)]);
+			builder.append(random.nextInt(8) == 0 ? '\n' : ' ');
+		}
+		builder.setLength(size);
+		writeFile(file, builder.toString());
+	}
+
 	protected static void prettyPrintXML(final String string, final Writer writer)
 		throws IOException
 	{